@@ -0,0 +1,88 @@
+package com.devexperts.jagent;
+
+/*
+ * #%L
+ * JAgent API
+ * %%
+ * Copyright (C) 2015 - 2016 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Handler of {@code jagent:} URLs which point to resources of {@link InnerJarClassLoader}, e.g.
+ * {@code jagent:jar:file:/path/agent.jar!/impl.jar!/META-INF/services/com.example.Service}.
+ * Resources are served from memory.
+ *
+ * <p>The handler is passed to URLs explicitly and is not registered globally,
+ * so the URLs cannot be created from their string forms. Relative URLs are resolved against them
+ * (e.g. {@code new URL(resourceUrl, "other.properties")}) within the same inner JAR.
+ */
+class Handler extends URLStreamHandler {
+    static final String PROTOCOL = "jagent";
+    private static final String ENTRY_SEPARATOR = "!/";
+
+    @Override
+    protected void parseURL(URL u, String spec, int start, int limit) {
+        String path = spec.substring(start, limit);
+        // the context is copied to u when spec has no scheme
+        if (u.getFile() != null && !spec.regionMatches(true, 0, PROTOCOL + ":", 0, PROTOCOL.length() + 1))
+            path = resolve(u.getFile(), path);
+        // the path is an URL itself, keep it as is
+        setURL(u, PROTOCOL, "", -1, null, null, path, null, null);
+    }
+
+    // Resolves relative path against the name of entry in the innermost JAR
+    private static String resolve(String base, String relative) {
+        int i = base.lastIndexOf(ENTRY_SEPARATOR);
+        if (i < 0 || relative.isEmpty())
+            return base;
+        String jar = base.substring(0, i + ENTRY_SEPARATOR.length());
+        String name = relative.startsWith("/") ? relative.substring(1) :
+            base.substring(jar.length(), base.lastIndexOf('/') + 1) + relative;
+        Deque<String> segments = new ArrayDeque<>();
+        for (String segment : name.split("/", -1)) {
+            if (segment.equals("..")) {
+                segments.pollLast();
+            } else if (!segment.equals(".")) {
+                segments.addLast(segment);
+            }
+        }
+        StringBuilder sb = new StringBuilder(jar);
+        for (String segment : segments) {
+            if (sb.length() > jar.length())
+                sb.append('/');
+            sb.append(segment);
+        }
+        // the last segment is a directory
+        boolean directory = name.endsWith("/.") || name.endsWith("/..") || name.equals(".") || name.equals("..");
+        if (directory && sb.length() > jar.length())
+            sb.append('/');
+        return sb.toString();
+    }
+
+    @Override
+    protected URLConnection openConnection(URL u) throws IOException {
+        return InnerJarClassLoader.openConnection(u);
+    }
+}
@@ -23,35 +23,95 @@ package com.devexperts.jagent;
  */
 
 import java.io.*;
-import java.net.URL;
-import java.net.URLClassLoader;
+import java.lang.ref.SoftReference;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.security.*;
 import java.security.cert.Certificate;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 import java.util.jar.JarInputStream;
 import java.util.jar.Manifest;
+import java.util.zip.CRC32;
 
 /**
  * This ClassLoader allows to load classes from URLs located inside JAR or ZIP files.
+ *
+ * <p>Every JAR is read into memory once and indexed, its entries are inflated only when the corresponding class
+ * is loaded or the resource is requested. Signed JARs and JARs in unsupported formats are inflated eagerly,
+ * so entry certificates are verified. JARs which are stored uncompressed inside a local JAR file
+ * (see {@code recompressAddedZips} option of Maven archiver) are not read at all, the outer file is mapped
+ * into memory and inner JARs are used in place.
+ *
+ * <p>The loader is parallel capable: classes are defined under per-class locks and the index of entries
+ * is not modified after construction, so it is read without locking.
+ *
+ * <p>Loading is routed by the index of classes of inner JARs, which is built while JARs are scanned:
+ * indexed classes are defined by this loader without asking the parent, all other names (including JDK ones)
+ * are passed to the parent without any other local lookup. The index is more precise than a table of packages,
+ * because packages can be split between inner JARs and the parent, and it costs the same single hash lookup.
+ * Results of the parent are not cached, because classes can be added to the parent at any time.
+ *
+ * <p>Classes which are used at startup can be defined in advance by background threads, see {@link #warmUp(String, int)}.
  */
 public class InnerJarClassLoader extends URLClassLoader {
     private static final String CLASS_FILE_SUFFIX = ".class";
     private static final int BUFFER_SIZE = 4096;
+    private static final String URL_SEPARATOR = "!/";
+    private static final String CRC_FILE_SUFFIX = ".crc";
+    /**
+     * System property which disables mapping of JAR files, set it to {@code false} to copy JARs to the heap.
+     */
+    public static final String MAP_JARS_PROPERTY = "jagent.mapJars";
+    private static final boolean MAP_JARS = Boolean.parseBoolean(System.getProperty(MAP_JARS_PROPERTY, "true"));
+    private static final String WARM_UP_THREAD_NAME = "InnerJarClassLoader-WarmUp-";
+    // set in warm-up threads, classes which they define are not recorded to the class list
+    private static final ThreadLocal<Boolean> WARMING_UP = new ThreadLocal<>();
+    private static final Handler URL_HANDLER = new Handler();
+    /**
+     * All created loaders, URLs of their resources share one handler which finds the loader serving them.
+     */
+    private static final Set<InnerJarClassLoader> LOADERS =
+        Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<InnerJarClassLoader, Boolean>()));
+
+    static {
+        // classes are loaded under per-class locks, so threads do not serialize on the loader
+        registerAsParallelCapable();
+    }
 
     /**
      * The context to be used for loading classes and resources.
      */
     private final AccessControlContext acc;
     /**
-     * All cached classes.
+     * All cached classes. Filled in constructor only, so it is read without synchronization.
      */
     private final Map<String, CachedClass> classes = new HashMap<>();
     /**
-     * All cached classes and other resources.
+     * All cached classes and other resources. Filled in constructor only, so it is read without synchronization.
      */
     private final Map<String, CachedResource> resources = new HashMap<>();
+    /**
+     * Package directory (e.g. {@code "com/example/"}) -> URLs of JARs which contain it.
+     * Filled in constructor only, so it is read without synchronization.
+     */
+    private final Map<String, List<URL>> packages = new HashMap<>();
+    /**
+     * Images of JARs which entries are read on demand.
+     */
+    private final List<JarImage> images = new ArrayList<>();
+    /**
+     * Names of classes in order of definition by threads other than warm-up ones, recorded only if warm-up is enabled.
+     */
+    private volatile Queue<String> definedClasses;
 
     /**
      * Creates class loader for specified JAR files.
@@ -59,8 +119,11 @@ public class InnerJarClassLoader extends URLClassLoader {
     public InnerJarClassLoader(URL... jars) throws IOException {
         super(new URL[0]);
         acc = AccessController.getContext();
+        // outer JAR file -> mapped image (or null if it cannot be mapped), shared by inner JARs
+        Map<String, JarImage> outerImages = new HashMap<>();
         for (URL jar : jars)
-            cacheJar(jar);
+            cacheJar(jar, outerImages);
+        LOADERS.add(this);
     }
 
     /**
@@ -74,22 +137,76 @@ public class InnerJarClassLoader extends URLClassLoader {
      * Creates {@link InnerJarClassLoader} for specified jar files.
      */
     public static InnerJarClassLoader createForJars(String... jars) throws IOException {
+        return createForUrls(getJarUrls(jars));
+    }
+
+    /**
+     * Creates {@link InnerJarClassLoader} for specified jar files which are extracted to specified directory first.
+     * Classes have real JAR files as their code source then, so they can be stored in static CDS archive
+     * (see {@link #writeSharedClassList(Path)}) and loaded from it on JDK 10+.
+     * Files which are already extracted are reused if their size and CRC, which is stored next to them, are the same.
+     */
+    public static InnerJarClassLoader createForJars(Path extractDirectory, String... jars) throws IOException {
+        URL[] urls = getJarUrls(jars);
+        Files.createDirectories(extractDirectory);
+        for (int i = 0; i < urls.length; i++) {
+            Path file = extractDirectory.resolve(Paths.get(jars[i]).getFileName());
+            extractJar(urls[i], file);
+            urls[i] = file.toUri().toURL();
+        }
+        return createForUrls(urls);
+    }
+
+    private static URL[] getJarUrls(String... jars) {
         URL[] urls = new URL[jars.length];
         for (int i = 0; i < jars.length; i++)
             urls[i] = Thread.currentThread().getContextClassLoader().getResource(jars[i]);
-        return createForUrls(urls);
+        return urls;
+    }
+
+    private static void extractJar(URL url, Path file) throws IOException {
+        byte[] jar;
+        try (InputStream in = url.openStream()) {
+            jar = readFully(in);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(jar, 0, jar.length);
+        byte[] crcBytes = Long.toHexString(crc.getValue()).getBytes(StandardCharsets.US_ASCII);
+        Path crcFile = file.resolveSibling(file.getFileName() + CRC_FILE_SUFFIX);
+        if (Files.exists(file) && Files.size(file) == jar.length &&
+            Files.exists(crcFile) && Arrays.equals(Files.readAllBytes(crcFile), crcBytes))
+        {
+            return; // CDS archive checks modification time of JAR, so it is not touched
+        }
+        writeAtomically(file, jar);
+        writeAtomically(crcFile, crcBytes);
+    }
+
+    // File is replaced atomically, so loaders of other JVMs which use it are not affected
+    private static void writeAtomically(Path file, byte[] bytes) throws IOException {
+        Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tmp, bytes);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
     }
 
     @Override
-    protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
-        // First, check if the class has already been loaded
-        Class clazz = findLoadedClass(name);
-        if (clazz == null) {
-            CachedClass cc = classes.get(name);
-            if (cc != null)
-                clazz = cc.define();
-            if (clazz == null)
-                clazz = getParent().loadClass(name);
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        Class clazz;
+        CachedClass cc = classes.get(name);
+        if (cc == null) {
+            // not our class, the parent loader does its own locking
+            clazz = getParent().loadClass(name);
+        } else {
+            synchronized (getClassLoadingLock(name)) {
+                // First, check if the class has already been loaded
+                clazz = findLoadedClass(name);
+                if (clazz == null)
+                    clazz = cc.define();
+            }
         }
         if (resolve)
             resolveClass(clazz);
@@ -99,9 +216,12 @@ public class InnerJarClassLoader extends URLClassLoader {
     @Override
     protected Class<?> findClass(String name) throws ClassNotFoundException {
         CachedClass cc = classes.get(name);
-        if (cc != null)
-            return cc.define();
-        throw new ClassNotFoundException(name);
+        if (cc == null)
+            throw new ClassNotFoundException(name);
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> clazz = findLoadedClass(name);
+            return clazz != null ? clazz : cc.define();
+        }
     }
 
     @Override
@@ -112,8 +232,326 @@ public class InnerJarClassLoader extends URLClassLoader {
         return super.getResourceAsStream(name);
     }
 
-    private void cacheJar(URL url) throws IOException {
-        try (JarInputStream jarInputStream = new JarInputStream(url.openStream())) {
+    @Override
+    public URL getResource(String name) {
+        // resources of inner JARs have priority like their classes
+        URL url = findResource(name);
+        return url != null ? url : super.getResource(name);
+    }
+
+    @Override
+    public URL findResource(String name) {
+        CachedResource resource = resources.get(name);
+        if (resource != null)
+            return createURL(resource.url, name);
+        List<URL> jars = packages.get(name);
+        if (jars != null)
+            return createURL(jars.get(0), name);
+        return null;
+    }
+
+    @Override
+    public Enumeration<URL> findResources(String name) {
+        List<URL> urls = new ArrayList<>();
+        for (CachedResource resource = resources.get(name); resource != null; resource = resource.shadowed)
+            urls.add(createURL(resource.url, name));
+        // the same order as JARs
+        Collections.reverse(urls);
+        List<URL> jars = packages.get(name);
+        if (jars != null) {
+            for (URL jar : jars)
+                urls.add(createURL(jar, name));
+        }
+        return Collections.enumeration(urls);
+    }
+
+    /**
+     * Opens connection to resource of some loader, see {@link Handler}.
+     */
+    static URLConnection openConnection(URL u) throws IOException {
+        String file = u.getFile();
+        int i = file.lastIndexOf(URL_SEPARATOR);
+        if (i < 0)
+            throw new MalformedURLException(u.toString());
+        String jar = file.substring(0, i);
+        String name = file.substring(i + URL_SEPARATOR.length());
+        InnerJarClassLoader[] loaders;
+        synchronized (LOADERS) {
+            loaders = LOADERS.toArray(new InnerJarClassLoader[LOADERS.size()]);
+        }
+        for (InnerJarClassLoader loader : loaders) {
+            URLConnection connection = loader.openConnection(u, jar, name);
+            if (connection != null)
+                return connection;
+        }
+        throw new FileNotFoundException(u.toString());
+    }
+
+    private URLConnection openConnection(URL u, String jar, String name) {
+        for (CachedResource resource = resources.get(name); resource != null; resource = resource.shadowed) {
+            if (resource.url.toExternalForm().equals(jar))
+                return new InnerJarURLConnection(u, resource);
+        }
+        List<URL> jars = packages.get(name);
+        if (jars != null) {
+            for (URL url : jars) {
+                if (url.toExternalForm().equals(jar))
+                    return new InnerJarURLConnection(u, null); // package directory
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Defines and links classes from specified class list in background, so classes of agent are ready before
+     * they are used for the first time, and appends classes which are defined by other threads in this run
+     * to the list on shutdown. Classes which are defined by warm-up itself (e.g. types of fields, which
+     * are loaded to link classes) are not recorded, so the list grows only with classes which are used.
+     * The list contains one class name per line, it can be also generated at build time.
+     * Classes are not initialized, classes which cannot be defined are skipped, unknown classes are also
+     * removed from the list.
+     *
+     * @param classListFile file with names of classes to be defined.
+     * @param threads       number of threads which define classes.
+     * @throws IOException if the class list exists but cannot be read.
+     */
+    public void warmUp(final String classListFile, int threads) throws IOException {
+        if (threads <= 0)
+            throw new IllegalArgumentException("threads should be positive: " + threads);
+        final Path path = Paths.get(classListFile);
+        final List<String> classList = Files.exists(path) ?
+            Files.readAllLines(path, StandardCharsets.UTF_8) : Collections.<String>emptyList();
+        definedClasses = new ConcurrentLinkedQueue<>();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Set<String> names = new LinkedHashSet<>();
+                for (String name : classList) {
+                    if (classes.containsKey(name.trim()))
+                        names.add(name.trim());
+                }
+                names.addAll(definedClasses);
+                try {
+                    if (path.getParent() != null)
+                        Files.createDirectories(path.getParent());
+                    Files.write(path, names, StandardCharsets.UTF_8);
+                } catch (IOException ignored) {
+                    // the list from previous run is kept
+                }
+            }
+        }, "ClassListWriter"));
+        if (classList.isEmpty())
+            return;
+        final AtomicInteger next = new AtomicInteger();
+        for (int t = 0; t < Math.min(threads, classList.size()); t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    WARMING_UP.set(Boolean.TRUE);
+                    // classes are taken in the order of list, so the earliest used classes are defined first
+                    for (int i; (i = next.getAndIncrement()) < classList.size(); )
+                        warmUp(classList.get(i).trim());
+                }
+            }, WARM_UP_THREAD_NAME + (t + 1));
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void warmUp(String name) {
+        if (!classes.containsKey(name))
+            return; // class from outdated list
+        try {
+            // there is no API to only link a class, so reflection is used: it links (verifies) the class without
+            // initialization, but also loads types of its fields, which may fail for classes which are not used;
+            // such errors are ignored
+            loadClass(name, false).getDeclaredFields();
+        } catch (ClassNotFoundException | LinkageError | RuntimeException ignored) {
+            // the same error is reported when the class is used
+        }
+    }
+
+    /**
+     * Writes classes which are defined by this loader from local JAR files (see {@link #createForJars(Path, String...)})
+     * and their super classes and interfaces in the format of {@code -XX:SharedClassListFile} option,
+     * so static CDS archive for them can be created with {@code -Xshare:dump}. JVM uses archived classes
+     * when this loader defines classes with the same bytes.
+     * Classes which super types are defined by other custom loaders are skipped.
+     *
+     * @param file file to write the list to.
+     * @throws IOException if the list cannot be written.
+     */
+    public void writeSharedClassList(Path file) throws IOException {
+        Map<Class<?>, Integer> ids = new HashMap<>();
+        List<String> lines = new ArrayList<>();
+        for (CachedClass cachedClass : classes.values()) {
+            if (cachedClass.defined)
+                getSharedClassId(findLoadedClass(cachedClass.className), ids, lines);
+        }
+        if (file.getParent() != null)
+            Files.createDirectories(file.getParent());
+        Files.write(file, lines, StandardCharsets.UTF_8);
+    }
+
+    // Lists class after its super types, returns its id or -1 if the class cannot be archived
+    private int getSharedClassId(Class<?> clazz, Map<Class<?>, Integer> ids, List<String> lines) {
+        if (clazz == null)
+            return -1;
+        Integer id = ids.get(clazz);
+        if (id != null)
+            return id;
+        ids.put(clazz, -1); // not listed until super types are
+        StringBuilder line = new StringBuilder(clazz.getName().replace('.', '/'));
+        if (clazz.getClassLoader() == this) {
+            CachedClass cachedClass = classes.get(clazz.getName());
+            if (cachedClass == null || !"file".equals(cachedClass.url.getProtocol()))
+                return -1;
+            int superId = getSharedClassId(clazz.getSuperclass(), ids, lines);
+            if (superId < 0)
+                return -1;
+            StringBuilder interfaces = new StringBuilder();
+            for (Class<?> i : clazz.getInterfaces()) {
+                int interfaceId = getSharedClassId(i, ids, lines);
+                if (interfaceId < 0)
+                    return -1;
+                interfaces.append(' ').append(interfaceId);
+            }
+            line.append(" id: ").append(lines.size()).append(" super: ").append(superId);
+            if (interfaces.length() > 0)
+                line.append(" interfaces:").append(interfaces);
+            try {
+                line.append(" source: ").append(Paths.get(cachedClass.url.toURI()));
+            } catch (URISyntaxException e) {
+                return -1;
+            }
+        } else {
+            // classes of built-in loaders are found by name
+            ClassLoader loader = clazz.getClassLoader();
+            if (loader != null && loader != ClassLoader.getSystemClassLoader() &&
+                loader != ClassLoader.getSystemClassLoader().getParent())
+            {
+                return -1;
+            }
+            line.append(" id: ").append(lines.size());
+        }
+        ids.put(clazz, lines.size());
+        lines.add(line.toString());
+        return lines.size() - 1;
+    }
+
+    private void putClass(CachedClass cachedClass) {
+        classes.put(cachedClass.className, cachedClass);
+    }
+
+    // Remembers resource, resources with the same name from previous JARs are shadowed
+    private void putResource(CachedResource resource) {
+        resource.shadowed = resources.put(resource.resourceName, resource);
+        // index all enclosing package directories
+        String name = resource.resourceName;
+        for (int i = name.lastIndexOf('/'); i > 0; i = name.lastIndexOf('/', i - 1)) {
+            String dir = name.substring(0, i + 1);
+            List<URL> jars = packages.get(dir);
+            if (jars == null)
+                packages.put(dir, jars = new ArrayList<>(1));
+            else if (jars.contains(resource.url))
+                break; // enclosing directories are indexed already
+            jars.add(resource.url);
+        }
+    }
+
+    private URL createURL(URL jar, String name) {
+        try {
+            return new URL(Handler.PROTOCOL, "", -1, jar.toExternalForm() + URL_SEPARATOR + name, URL_HANDLER);
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void cacheJar(URL url, Map<String, JarImage> outerImages) throws IOException {
+        JarImage image = mapJar(url, outerImages);
+        byte[] jar = null;
+        if (image == null) {
+            try (InputStream in = url.openStream()) {
+                jar = readFully(in);
+            }
+            image = JarImage.parse(ByteBuffer.wrap(jar));
+        }
+        if (image != null)
+            images.add(image);
+        if (image == null || image.isSigned()) {
+            cacheJarEagerly(url, jar != null ? new ByteArrayInputStream(jar) : url.openStream(), image);
+            return;
+        }
+        Manifest manifest = image.getManifest();
+        for (JarImage.Entry entry : image.getEntries()) {
+            String name = entry.name;
+            if (name.equalsIgnoreCase(JarFile.MANIFEST_NAME))
+                continue; // the same as JarInputStream does
+            if (name.endsWith(CLASS_FILE_SUFFIX)) {
+                CachedClass cachedClass = new CachedClass(url, manifest, name, image, entry, null, null);
+                putClass(cachedClass);
+                putResource(cachedClass);
+            } else {
+                putResource(new CachedResource(url, manifest, name, image, entry, null, null));
+            }
+        }
+    }
+
+    /**
+     * Returns image of local JAR file or of inner JAR which is stored uncompressed in a local JAR file
+     * (e.g. {@code jar:file:/agent.jar!/impl.jar}), the file is mapped into memory, so entries are read in place.
+     *
+     * @return image or {@code null} if the JAR cannot be mapped or mapping is disabled by {@link #MAP_JARS_PROPERTY}.
+     */
+    private static JarImage mapJar(URL url, Map<String, JarImage> outerImages) {
+        if (!MAP_JARS)
+            return null;
+        if ("file".equals(url.getProtocol())) {
+            try {
+                return JarImage.map(Paths.get(url.toURI()));
+            } catch (IOException | URISyntaxException | RuntimeException e) {
+                return null; // read JAR via URL
+            }
+        }
+        if (!"jar".equals(url.getProtocol()))
+            return null;
+        String spec = url.getFile();
+        int i = spec.indexOf(URL_SEPARATOR);
+        if (i < 0)
+            return null;
+        String outer = spec.substring(0, i);
+        try {
+            if (!outerImages.containsKey(outer)) {
+                URL outerUrl = new URL(outer);
+                outerImages.put(outer, "file".equals(outerUrl.getProtocol()) ?
+                    JarImage.map(Paths.get(outerUrl.toURI())) : null);
+            }
+            JarImage outerImage = outerImages.get(outer);
+            return outerImage != null ? outerImage.getStoredJar(spec.substring(i + URL_SEPARATOR.length())) : null;
+        } catch (IOException | URISyntaxException | RuntimeException e) {
+            outerImages.put(outer, null);
+            return null; // read JAR via URL
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            baos.write(buf, 0, n);
+        }
+        return baos.toByteArray();
+    }
+
+    // Entries of specified image (if not null) are used to re-read bytes of defined classes
+    private void cacheJarEagerly(URL url, InputStream in, JarImage image) throws IOException {
+        Map<String, JarImage.Entry> imageEntries = new HashMap<>();
+        if (image != null) {
+            for (JarImage.Entry entry : image.getEntries())
+                imageEntries.put(entry.name, entry);
+        }
+        try (JarInputStream jarInputStream = new JarInputStream(in)) {
             Manifest manifest = jarInputStream.getManifest();
             while (true) {
                 JarEntry entry = jarInputStream.getNextJarEntry();
@@ -137,31 +575,105 @@ public class InnerJarClassLoader extends URLClassLoader {
                     }
                 } else {
                     // Size is unknown
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    byte[] buf = new byte[BUFFER_SIZE];
-                    int n;
-                    while ((n = jarInputStream.read(buf)) > 0) {
-                        baos.write(buf, 0, n);
-                    }
-                    bytes = baos.toByteArray();
+                    bytes = readFully(jarInputStream);
                 }
+                JarImage.Entry imageEntry = imageEntries.get(name);
+                JarImage entryImage = imageEntry != null ? image : null;
+                CachedResource resource;
                 if (name.endsWith(CLASS_FILE_SUFFIX)) {
-                    cacheClass(url, manifest, name, bytes, entry.getCertificates());
+                    CachedClass cachedClass = new CachedClass(url, manifest, name, entryImage, imageEntry, bytes,
+                        entry.getCertificates());
+                    putClass(cachedClass);
+                    resource = cachedClass;
                 } else {
-                    cacheResource(url, manifest, name, bytes, entry.getCertificates());
+                    resource = new CachedResource(url, manifest, name, entryImage, imageEntry, bytes,
+                        entry.getCertificates());
                 }
+                putResource(resource);
+                // certificates are verified, bytes can be read from the image again
+                if (entryImage != null)
+                    resource.release();
             }
         }
     }
 
-    private void cacheClass(URL url, Manifest manifest, String name, byte[] bytes, Certificate[] certificates) {
-        CachedClass cachedClass = new CachedClass(url, manifest, name, bytes, certificates);
-        classes.put(cachedClass.className, cachedClass);
-        resources.put(name, cachedClass);
+    private static byte[] readEntry(URL url, String name) throws IOException {
+        try (JarInputStream jarInputStream = new JarInputStream(url.openStream())) {
+            for (JarEntry entry; (entry = jarInputStream.getNextJarEntry()) != null; ) {
+                if (entry.getName().equals(name))
+                    return readFully(jarInputStream);
+            }
+        }
+        throw new FileNotFoundException(url + "!/" + name);
     }
 
-    private void cacheResource(URL url, Manifest manifest, String name, byte[] bytes, Certificate[] certificates) {
-        resources.put(name, new CachedResource(url, manifest, name, bytes, certificates));
+    /**
+     * Returns report on memory which is retained by this class loader on the heap:
+     * images of JARs, inflated entries which are kept, and the number of defined classes.
+     */
+    public String getRetainedMemoryReport() {
+        long imageBytes = 0;
+        long mappedBytes = 0;
+        int mappedCount = 0;
+        for (JarImage image : images) {
+            if (image.isMapped()) {
+                mappedBytes += image.size();
+                mappedCount++;
+            } else {
+                imageBytes += image.size();
+            }
+        }
+        long entryBytes = 0;
+        int entryCount = 0;
+        for (CachedResource resource : resources.values()) {
+            int retained = resource.getRetainedSize();
+            if (retained > 0) {
+                entryBytes += retained;
+                entryCount++;
+            }
+        }
+        int defined = 0;
+        for (CachedClass cachedClass : classes.values()) {
+            if (cachedClass.defined)
+                defined++;
+        }
+        return "InnerJarClassLoader retains " + (imageBytes + entryBytes) + " bytes: " +
+            (images.size() - mappedCount) + " JAR images of " + imageBytes + " bytes, " +
+            entryCount + " inflated entries of " + entryBytes + " bytes; " +
+            mappedCount + " JARs of " + mappedBytes + " bytes are mapped from files; " +
+            defined + " of " + classes.size() + " classes are defined";
+    }
+
+    /**
+     * Connection to resource in memory, {@code null} resource stands for a directory.
+     */
+    private static class InnerJarURLConnection extends URLConnection {
+        private final CachedResource resource;
+
+        private InnerJarURLConnection(URL url, CachedResource resource) {
+            super(url);
+            this.resource = resource;
+        }
+
+        @Override
+        public void connect() {
+            connected = true;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (resource == null)
+                return new ByteArrayInputStream(new byte[0]);
+            InputStream in = resource.openStream();
+            if (in == null)
+                throw new FileNotFoundException(url.toString());
+            return in;
+        }
+
+        @Override
+        public int getContentLength() {
+            return resource == null ? 0 : resource.getSize();
+        }
     }
 
     /**
@@ -171,22 +683,84 @@ public class InnerJarClassLoader extends URLClassLoader {
         protected final URL url;
         protected final Manifest manifest;
         protected final String resourceName;
-        protected final byte[] bytes;
         protected final Certificate[] certificates;
+        // resource with the same name from previous JAR
+        private CachedResource shadowed;
+        // inflated bytes and/or entry of JAR image to be inflated on demand
+        private volatile byte[] bytes;
+        // released bytes which cannot be read from JAR image
+        private volatile SoftReference<byte[]> releasedBytes;
+        private final JarImage image;
+        private final JarImage.Entry entry;
 
-        private CachedResource(URL url, Manifest manifest, String resourceName, byte[] bytes, Certificate[] certificates) {
+        private CachedResource(URL url, Manifest manifest, String resourceName, JarImage image, JarImage.Entry entry,
+                               byte[] bytes, Certificate[] certificates)
+        {
             this.url = url;
             this.manifest = manifest;
             this.resourceName = resourceName;
+            this.image = image;
+            this.entry = entry;
             this.bytes = bytes;
             this.certificates = certificates;
         }
 
+        /**
+         * Drops inflated bytes, they are read from JAR image again when requested.
+         * If there is no image, bytes are kept softly and the JAR is read again if they are collected.
+         */
+        protected void release() {
+            byte[] bytes = this.bytes;
+            if (bytes == null)
+                return;
+            if (image == null)
+                releasedBytes = new SoftReference<>(bytes);
+            this.bytes = null;
+        }
+
+        protected int getRetainedSize() {
+            byte[] bytes = this.bytes;
+            return bytes != null ? bytes.length : 0;
+        }
+
+        /**
+         * Returns bytes of this resource, inflates them if needed.
+         */
+        protected byte[] getBytes() throws IOException {
+            byte[] bytes = this.bytes;
+            if (bytes != null)
+                return bytes;
+            if (image != null)
+                return image.read(entry);
+            bytes = releasedBytes.get();
+            return bytes != null ? bytes : readEntry(url, resourceName);
+        }
+
+        /**
+         * Returns bytes of this resource in mapped JAR image, they are not copied.
+         *
+         * @return buffer or {@code null} if the resource is not stored uncompressed in mapped JAR image.
+         */
+        protected ByteBuffer getMappedBytes() {
+            return bytes == null && image != null ? image.getMappedData(entry) : null;
+        }
+
+        protected int getSize() {
+            byte[] bytes = this.bytes;
+            return bytes != null ? bytes.length : entry != null ? entry.size : -1;
+        }
+
         /**
          * Opens this resource as stream.
+         *
+         * @return stream or {@code null} if the resource cannot be read.
          */
         public InputStream openStream() {
-            return new ByteArrayInputStream(bytes);
+            try {
+                return new ByteArrayInputStream(getBytes());
+            } catch (IOException e) {
+                return null;
+            }
         }
     }
 
@@ -195,9 +769,12 @@ public class InnerJarClassLoader extends URLClassLoader {
      */
     private class CachedClass extends CachedResource {
         protected final String className;
+        protected volatile boolean defined;
 
-        private CachedClass(URL url, Manifest manifest, String resourceName, byte[] bytes, Certificate[] certificates) {
-            super(url, manifest, resourceName, bytes, certificates);
+        private CachedClass(URL url, Manifest manifest, String resourceName, JarImage image, JarImage.Entry entry,
+                            byte[] bytes, Certificate[] certificates)
+        {
+            super(url, manifest, resourceName, image, entry, bytes, certificates);
             assert resourceName.endsWith(CLASS_FILE_SUFFIX);
             className = resourceName.replace('/', '.').substring(0, resourceName.length() - CLASS_FILE_SUFFIX.length());
         }
@@ -205,21 +782,42 @@ public class InnerJarClassLoader extends URLClassLoader {
         public Class<?> define() {
             try {
                 return AccessController.doPrivileged(new PrivilegedExceptionAction<Class<?>>() {
-                    public Class<?> run() {
+                    public Class<?> run() throws IOException {
                         int i = className.lastIndexOf('.');
                         if (i != -1) {
                             String packageName = className.substring(0, i);
                             Package pkg = getPackage(packageName);
                             if (pkg == null) {
-                                if (manifest != null) {
-                                    definePackage(packageName, manifest, url);
-                                } else {
-                                    definePackage(packageName, null, null, null, null, null, null, null);
+                                try {
+                                    if (manifest != null) {
+                                        definePackage(packageName, manifest, url);
+                                    } else {
+                                        definePackage(packageName, null, null, null, null, null, null, null);
+                                    }
+                                } catch (IllegalArgumentException e) {
+                                    // package is defined concurrently by another thread
+                                    if (getPackage(packageName) == null)
+                                        throw e;
                                 }
                             }
                         }
                         CodeSource cs = new CodeSource(url, certificates);
-                        return defineClass(className, bytes, 0, bytes.length, cs);
+                        // the JVM parses stored classes of mapped JARs in place
+                        ByteBuffer mapped = getMappedBytes();
+                        Class<?> clazz;
+                        if (mapped != null) {
+                            clazz = defineClass(className, mapped, cs);
+                        } else {
+                            byte[] bytes = getBytes();
+                            clazz = defineClass(className, bytes, 0, bytes.length, cs);
+                        }
+                        // class bytes are in metaspace now, they are read again from JAR image if requested
+                        defined = true;
+                        Queue<String> definedClasses = InnerJarClassLoader.this.definedClasses;
+                        if (definedClasses != null && WARMING_UP.get() == null)
+                            definedClasses.add(className);
+                        release();
+                        return clazz;
                     }
                 }, acc);
             } catch (PrivilegedActionException pae) {
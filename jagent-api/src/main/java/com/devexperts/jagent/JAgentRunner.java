@@ -24,11 +24,16 @@ package com.devexperts.jagent;
 
 import java.lang.instrument.Instrumentation;
 import java.lang.reflect.InvocationTargetException;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
- * Utility class that helps you to run {@code JAgent} instance from {@code premain} method.
+ * Utility class that helps you to run {@code JAgent} instance from {@code premain} or {@code agentmain} method
+ * and to stop it when dynamically attached agent should be detached.
  */
 public class JAgentRunner {
+    // agent class name -> running agent
+    private static final Map<String, Object> RUNNING_AGENTS = new HashMap<>();
 
     // Utility class, no instance
     private JAgentRunner() {
@@ -39,13 +44,16 @@ public class JAgentRunner {
      *
      * @param jagentClass agent class to be run. Should inherits {@code JAgent} class
      *                    and have {@code (Instrumentation inst, String agentArgs} constructor.
-     * @param inst        instrumentation from {@code premain} method.
-     * @param agentArgs   agent arguments from {@code premain} method.
+     * @param inst        instrumentation from {@code premain} or {@code agentmain} method.
+     * @param agentArgs   agent arguments from {@code premain} or {@code agentmain} method.
      * @param classLoader {@link ClassLoader class loader} to be used for running agent.
      * @throws ClassNotFoundException   if specified agent class isn't found.
      * @throws IllegalArgumentException if specified agent class has invalid format.
+     * @throws IllegalStateException    if agent of specified class is already running.
      */
-    public static void runAgent(String jagentClass, Instrumentation inst, String agentArgs, ClassLoader classLoader) throws ClassNotFoundException {
+    public static synchronized void runAgent(String jagentClass, Instrumentation inst, String agentArgs, ClassLoader classLoader) throws ClassNotFoundException {
+        if (RUNNING_AGENTS.containsKey(jagentClass))
+            throw new IllegalStateException("Agent " + jagentClass + " is already running");
         Class<?> agentClass = classLoader.loadClass(jagentClass);
         Object agent;
         try {
@@ -58,5 +66,28 @@ public class JAgentRunner {
         } catch (Exception e) {
             throw new IllegalArgumentException("Cannot start agent " + jagentClass, e);
         }
+        RUNNING_AGENTS.put(jagentClass, agent);
+    }
+
+    /**
+     * Stops agent which was started by {@link #runAgent(String, Instrumentation, String, ClassLoader)}.
+     * Agent's transformers are removed and original classes are restored, see {@code JAgent#stop()}.
+     * The agent should be created as {@code JAgent#setDetachable(boolean) detachable}.
+     *
+     * @param jagentClass agent class to be stopped.
+     * @throws IllegalStateException if agent of specified class is not running.
+     */
+    public static synchronized void stopAgent(String jagentClass) {
+        Object agent = RUNNING_AGENTS.get(jagentClass);
+        if (agent == null)
+            throw new IllegalStateException("Agent " + jagentClass + " is not running");
+        try {
+            agent.getClass().getMethod("stop").invoke(agent);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Cannot stop agent " + jagentClass, e.getCause());
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Cannot stop agent " + jagentClass, e);
+        }
+        RUNNING_AGENTS.remove(jagentClass);
     }
 }
@@ -0,0 +1,282 @@
+package com.devexperts.jagent;
+
+/*
+ * #%L
+ * JAgent API
+ * %%
+ * Copyright (C) 2015 - 2016 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Image of JAR file in memory which entries are inflated on demand.
+ * The central directory is parsed once, entries keep offsets of their data in the image.
+ * The image is either a heap buffer or a part of memory mapped file.
+ */
+class JarImage {
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+
+    private final ByteBuffer data;
+    private final List<Entry> entries;
+    private final boolean signed;
+
+    private JarImage(ByteBuffer data, List<Entry> entries, boolean signed) {
+        this.data = data;
+        this.entries = entries;
+        this.signed = signed;
+    }
+
+    /**
+     * Parses JAR file image.
+     *
+     * @return parsed image or {@code null} if the format is not supported (e.g. ZIP64).
+     */
+    static JarImage parse(ByteBuffer data) {
+        data = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int end = findEnd(data);
+        if (end < 0)
+            return null;
+        int count = data.getShort(end + 10) & 0xffff;
+        long dirOffset = data.getInt(end + 16) & 0xffffffffL;
+        if (count == 0xffff || dirOffset == 0xffffffffL)
+            return null; // ZIP64
+        List<Entry> entries = new ArrayList<>(count);
+        boolean signed = false;
+        int pos = (int) dirOffset;
+        for (int i = 0; i < count; i++) {
+            if (pos + CENTRAL_HEADER_SIZE > data.limit() || data.getInt(pos) != CENTRAL_HEADER_SIGNATURE)
+                return null;
+            int method = data.getShort(pos + 10) & 0xffff;
+            long compressedSize = data.getInt(pos + 20) & 0xffffffffL;
+            long size = data.getInt(pos + 24) & 0xffffffffL;
+            int nameLength = data.getShort(pos + 28) & 0xffff;
+            int extraLength = data.getShort(pos + 30) & 0xffff;
+            int commentLength = data.getShort(pos + 32) & 0xffff;
+            long localOffset = data.getInt(pos + 42) & 0xffffffffL;
+            String name = getString(data, pos + CENTRAL_HEADER_SIZE, nameLength);
+            pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+            if (name.endsWith("/"))
+                continue; // directory
+            if (method != STORED && method != DEFLATED || compressedSize == 0xffffffffL || size == 0xffffffffL)
+                return null;
+            int local = (int) localOffset;
+            if (local + LOCAL_HEADER_SIZE > data.limit() || data.getInt(local) != LOCAL_HEADER_SIGNATURE)
+                return null;
+            int dataOffset = local + LOCAL_HEADER_SIZE + (data.getShort(local + 26) & 0xffff) +
+                (data.getShort(local + 28) & 0xffff);
+            if (dataOffset + compressedSize > data.limit())
+                return null;
+            signed |= isSignatureFile(name);
+            entries.add(new Entry(name, method, dataOffset, (int) compressedSize, (int) size));
+        }
+        return new JarImage(data, Collections.unmodifiableList(entries), signed);
+    }
+
+    /**
+     * Maps specified JAR file into memory and parses it.
+     *
+     * @return parsed image or {@code null} if the format is not supported.
+     */
+    static JarImage map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Returns image of inner JAR which is stored uncompressed, the image shares memory with this one.
+     *
+     * @return image or {@code null} if there is no such stored entry or its format is not supported.
+     */
+    JarImage getStoredJar(String name) {
+        for (Entry entry : entries) {
+            if (entry.name.equals(name)) {
+                return entry.method == STORED ? parse(slice(entry)) : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns data of specified entry which is stored uncompressed in mapped image, the buffer shares memory
+     * with the image, so classes can be defined from it without copying.
+     *
+     * @return buffer or {@code null} if the entry is compressed or the image is on the heap.
+     */
+    ByteBuffer getMappedData(Entry entry) {
+        return entry.method == STORED && isMapped() ? slice(entry) : null;
+    }
+
+    private ByteBuffer slice(Entry entry) {
+        ByteBuffer slice = data.duplicate();
+        // Buffer methods are called, because ByteBuffer overrides them only since Java 9
+        ((Buffer) slice).position(entry.offset);
+        ((Buffer) slice).limit(entry.offset + entry.size);
+        return slice.slice();
+    }
+
+    /**
+     * Returns {@code true} if the image is mapped from file rather than kept on the heap.
+     */
+    boolean isMapped() {
+        return data.isDirect();
+    }
+
+    /**
+     * Returns size of the image in bytes.
+     */
+    int size() {
+        return data.capacity();
+    }
+
+    List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Returns {@code true} if the JAR is signed, entries of signed JARs should be verified while reading.
+     */
+    boolean isSigned() {
+        return signed;
+    }
+
+    /**
+     * Returns manifest of the JAR or {@code null} if there is no manifest.
+     */
+    Manifest getManifest() throws IOException {
+        for (Entry entry : entries) {
+            if (entry.name.equalsIgnoreCase(JarFile.MANIFEST_NAME))
+                return new Manifest(new ByteArrayInputStream(read(entry)));
+        }
+        return null;
+    }
+
+    /**
+     * Reads and inflates specified entry.
+     */
+    byte[] read(Entry entry) throws IOException {
+        if (entry.method == STORED) {
+            byte[] bytes = new byte[entry.size];
+            ByteBuffer src = data.duplicate();
+            ((Buffer) src).position(entry.offset);
+            src.get(bytes);
+            return bytes;
+        }
+        byte[] input;
+        int inputOffset;
+        // nowrap inflater may need an extra byte after compressed data, the image always has it
+        int inputLength = Math.min(entry.compressedSize + 1, data.limit() - entry.offset);
+        if (data.hasArray()) {
+            input = data.array();
+            inputOffset = data.arrayOffset() + entry.offset;
+        } else {
+            input = new byte[inputLength];
+            ByteBuffer src = data.duplicate();
+            ((Buffer) src).position(entry.offset);
+            src.get(input);
+            inputOffset = 0;
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(input, inputOffset, inputLength);
+            byte[] bytes = new byte[entry.size];
+            int n = 0;
+            while (n < bytes.length) {
+                int r = inflater.inflate(bytes, n, bytes.length - n);
+                if (r == 0 && (inflater.finished() || inflater.needsInput()))
+                    break;
+                n += r;
+            }
+            if (n != bytes.length)
+                throw new ZipException("Invalid entry size " + entry.name + ": " + n + " instead of " + bytes.length);
+            return bytes;
+        } catch (DataFormatException e) {
+            throw new ZipException("Invalid entry " + entry.name + ": " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int findEnd(ByteBuffer data) {
+        int min = Math.max(0, data.limit() - END_SIZE - MAX_COMMENT_SIZE);
+        for (int pos = data.limit() - END_SIZE; pos >= min; pos--) {
+            if (data.getInt(pos) == END_SIGNATURE)
+                return pos;
+        }
+        return -1;
+    }
+
+    private static String getString(ByteBuffer data, int pos, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer src = data.duplicate();
+        ((Buffer) src).position(pos);
+        src.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isSignatureFile(String name) {
+        if (!name.regionMatches(true, 0, "META-INF/", 0, 9) || name.indexOf('/', 9) >= 0)
+            return false;
+        String upper = name.toUpperCase();
+        return upper.endsWith(".SF") || upper.endsWith(".RSA") || upper.endsWith(".DSA") || upper.endsWith(".EC");
+    }
+
+    /**
+     * Entry of JAR image.
+     */
+    static class Entry {
+        final String name;
+        final int method;
+        final int offset;
+        final int compressedSize;
+        final int size;
+
+        private Entry(String name, int method, int offset, int compressedSize, int size) {
+            this.name = name;
+            this.method = method;
+            this.offset = offset;
+            this.compressedSize = compressedSize;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.devexperts.jagent;
+
+/*
+ * #%L
+ * JAgent Impl
+ * %%
+ * Copyright (C) 2015 - 2016 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that relative URLs are resolved against {@code jagent:} URLs of {@link InnerJarClassLoader} resources.
+ */
+public class HandlerTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testSiblingResource() throws IOException {
+        URL url = createLoader().getResource("conf/a.properties");
+        assertEquals(Handler.PROTOCOL, url.getProtocol());
+        URL sibling = new URL(url, "b.properties");
+        assertEquals("b", read(sibling));
+        assertEquals(url.toExternalForm().replace("a.properties", "b.properties"), sibling.toExternalForm());
+    }
+
+    @Test
+    public void testRelativePaths() throws IOException {
+        URL url = createLoader().getResource("conf/a.properties");
+        assertEquals("c", read(new URL(url, "../other/c.properties")));
+        assertEquals("c", read(new URL(url, "/other/c.properties")));
+        assertEquals("a", read(new URL(url, "./a.properties")));
+        assertEquals(url, new URL(url, url.toExternalForm()));
+        assertEquals(url, new URL(url, ""));
+    }
+
+    private InnerJarClassLoader createLoader() throws IOException {
+        File jar = tmp.newFile("test.jar");
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar))) {
+            put(out, "conf/a.properties", "a");
+            put(out, "conf/b.properties", "b");
+            put(out, "other/c.properties", "c");
+        }
+        return new InnerJarClassLoader(jar.toURI().toURL());
+    }
+
+    private static void put(JarOutputStream out, String name, String content) throws IOException {
+        out.putNextEntry(new JarEntry(name));
+        out.write(content.getBytes(StandardCharsets.UTF_8));
+        out.closeEntry();
+    }
+
+    private static String read(URL url) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream(), StandardCharsets.UTF_8))) {
+            return reader.readLine();
+        }
+    }
+}
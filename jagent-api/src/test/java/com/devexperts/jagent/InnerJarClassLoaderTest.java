@@ -0,0 +1,96 @@
+package com.devexperts.jagent;
+
+/*
+ * #%L
+ * JAgent Impl
+ * %%
+ * Copyright (C) 2015 - 2016 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.util.concurrent.Callable;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that classes are defined from JAR files which are mapped into memory.
+ */
+public class InnerJarClassLoaderTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testStoredAndDeflatedClasses() throws Exception {
+        File jar = tmp.newFile("test.jar");
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar))) {
+            putClass(out, Stored.class, JarEntry.STORED);
+            putClass(out, Deflated.class, JarEntry.DEFLATED);
+        }
+        InnerJarClassLoader loader = new InnerJarClassLoader(jar.toURI().toURL());
+        assertTrue(loader.getRetainedMemoryReport(), loader.getRetainedMemoryReport().contains("1 JARs"));
+        for (Class<?> clazz : new Class<?>[] {Stored.class, Deflated.class}) {
+            Class<?> defined = loader.loadClass(clazz.getName());
+            assertSame(loader, defined.getClassLoader());
+            assertEquals(clazz.getSimpleName(), ((Callable<?>) defined.newInstance()).call());
+        }
+    }
+
+    public static class Stored implements Callable<String> {
+        @Override
+        public String call() {
+            return "Stored";
+        }
+    }
+
+    public static class Deflated implements Callable<String> {
+        @Override
+        public String call() {
+            return "Deflated";
+        }
+    }
+
+    private static void putClass(JarOutputStream out, Class<?> clazz, int method) throws IOException {
+        String name = clazz.getName().replace('.', '/') + ".class";
+        byte[] bytes;
+        try (InputStream in = clazz.getResourceAsStream("/" + name)) {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            for (int b; (b = in.read()) >= 0; )
+                buf.write(b);
+            bytes = buf.toByteArray();
+        }
+        JarEntry entry = new JarEntry(name);
+        entry.setMethod(method);
+        if (method == JarEntry.STORED) {
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            entry.setSize(bytes.length);
+            entry.setCompressedSize(bytes.length);
+            entry.setCrc(crc.getValue());
+        }
+        out.putNextEntry(entry);
+        out.write(bytes);
+        out.closeEntry();
+    }
+}
@@ -23,28 +23,48 @@ package com.devexperts.jagent;
  */
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.CodeSource;
 import java.security.ProtectionDomain;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.CRC32;
-import java.util.zip.Checksum;
 
+/**
+ * Transformer which caches transformed classes on disk, see {@link #setCacheDir(String)},
+ * and can transform classes in advance using a profile of the previous run, see {@link #setProfile(String, int)}.
+ */
 public abstract class CachingClassFileTransformer implements ClassFileTransformer {
+    // marks pre-transformed classes which are not changed by transformation
+    private static final byte[] NOT_CHANGED = new byte[0];
+    private static final char PROFILE_SEPARATOR = '\t';
+    // pre-transformed classes which are not loaded yet are evicted when their size exceeds the limit
+    private static final long MAX_PREPARED_BYTES = 64L << 20;
 
     protected final Log log;
     private final String agentVersion;
     private volatile String cacheDir;
     private volatile String dumpDir;
+    private volatile String profileFile;
+    private Thread profileWriter; // guarded by this
 
-    private final ThreadLocal<Checksum> checksum = new ThreadLocal<Checksum>() {
-        @Override
-        protected Checksum initialValue() {
-            return new CRC32();
-        }
-    };
+    // "code source location<TAB>class name" in order of transformation
+    private final Queue<String> profile = new ConcurrentLinkedQueue<>();
+    private final Set<String> profiled = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // "code source location<TAB>class name#crc32=checksum" -> pre-transformed bytes, in order of preparation
+    private final Map<String, byte[]> prepared = new LinkedHashMap<>(); // guarded by itself
+    private long preparedBytes; // guarded by prepared
+    private int evictedCount; // guarded by prepared
+    private volatile boolean hasPrepared;
 
     protected CachingClassFileTransformer(Log log, String agentVersion) {
         this.log = log;
@@ -57,6 +77,17 @@ public abstract class CachingClassFileTransformer implements ClassFileTransforme
     {
         if (!processClass(className, loader))
             return null;
+        String location = classBeingRedefined == null ? getLocation(protectionDomain) : null;
+        if (location != null && profileFile != null)
+            recordProfile(location, className);
+        if (location != null && hasPrepared) {
+            byte[] res = takePrepared(getPreparedKey(location, className, classfileBuffer));
+            if (res != null) {
+                log.debug("Use pre-transformed class ", className, " loaded by ", loader);
+                dumpClassIfNeeded(className, loader, res == NOT_CHANGED ? classfileBuffer : res);
+                return res == NOT_CHANGED ? null : res;
+            }
+        }
         log.debug("Transforming ", className, " loaded by ", loader);
         byte[] res = getCachedOrTransform(loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
         dumpClassIfNeeded(className, loader, res);
@@ -71,9 +102,7 @@ public abstract class CachingClassFileTransformer implements ClassFileTransforme
             if (cacheDir == null)
                 return transformImpl(loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
             try {
-                Checksum checksum = this.checksum.get();
-                checksum.update(classfileBuffer, 0, classfileBuffer.length);
-                Path cachedFilePath = Paths.get(cacheDir, agentVersion, className + "#crc32=" + checksum.getValue() + ".class");
+                Path cachedFilePath = getCachedFilePath(className, classfileBuffer);
                 if (Files.exists(cachedFilePath)) {
                     log.debug("Load class ", className, " loaded by ", loader, " from cached file ", cachedFilePath);
                     return Files.readAllBytes(cachedFilePath);
@@ -95,6 +124,184 @@ public abstract class CachingClassFileTransformer implements ClassFileTransforme
         }
     }
 
+    // The key depends only on the class, so cached files are reused regardless of loading order
+    private static String getCacheKey(String className, byte[] classfileBuffer) {
+        CRC32 checksum = new CRC32();
+        checksum.update(classfileBuffer, 0, classfileBuffer.length);
+        return className + "#crc32=" + checksum.getValue();
+    }
+
+    private Path getCachedFilePath(String className, byte[] classfileBuffer) {
+        return Paths.get(cacheDir, agentVersion, getCacheKey(className, classfileBuffer) + ".class");
+    }
+
+    // Returns null if class file cannot be found in advance
+    private static String getLocation(ProtectionDomain protectionDomain) {
+        CodeSource codeSource = protectionDomain != null ? protectionDomain.getCodeSource() : null;
+        URL location = codeSource != null ? codeSource.getLocation() : null;
+        return location != null ? location.toExternalForm() : null;
+    }
+
+    // Classes with the same name and bytes may be transformed differently in different code sources
+    private static String getPreparedKey(String location, String className, byte[] classfileBuffer) {
+        return location + PROFILE_SEPARATOR + getCacheKey(className, classfileBuffer);
+    }
+
+    private byte[] takePrepared(String key) {
+        synchronized (prepared) {
+            byte[] res = prepared.remove(key);
+            if (res != null)
+                preparedBytes -= res.length;
+            return res;
+        }
+    }
+
+    private void putPrepared(String key, byte[] res) {
+        synchronized (prepared) {
+            if (prepared.containsKey(key))
+                return;
+            prepared.put(key, res);
+            preparedBytes += res.length;
+            // the oldest classes are the least likely to be loaded later
+            for (Iterator<byte[]> it = prepared.values().iterator(); preparedBytes > MAX_PREPARED_BYTES; ) {
+                preparedBytes -= it.next().length;
+                it.remove();
+                evictedCount++;
+            }
+        }
+        hasPrepared = true;
+    }
+
+    private void recordProfile(String location, String className) {
+        String entry = location + PROFILE_SEPARATOR + className;
+        if (profiled.add(entry))
+            profile.add(entry);
+    }
+
+    private void saveProfile() {
+        try {
+            Path path = Paths.get(profileFile);
+            if (path.getParent() != null)
+                Files.createDirectories(path.getParent());
+            Files.write(path, profile, StandardCharsets.UTF_8);
+            log.debug("Saved profile of ", profile.size(), " classes to ", path);
+        } catch (Exception e) {
+            log.warn("Unable to save profile to ", profileFile, e);
+        }
+    }
+
+    private void preTransform(List<String> entries, int threads) {
+        long startTime = System.currentTimeMillis();
+        // location -> its class loader, the order of locations is kept for resolution of other classes
+        Map<String, LocationClassLoader> loaders = new LinkedHashMap<>();
+        Map<String, URL> locations = new LinkedHashMap<>();
+        final List<String> classNames = new ArrayList<>(entries.size());
+        final List<String> classLocations = new ArrayList<>(entries.size());
+        for (String entry : entries) {
+            int i = entry.lastIndexOf(PROFILE_SEPARATOR);
+            if (i < 0)
+                continue;
+            String location = entry.substring(0, i);
+            try {
+                if (!locations.containsKey(location))
+                    locations.put(location, new URL(location));
+                classNames.add(entry.substring(i + 1));
+                classLocations.add(location);
+            } catch (IOException e) {
+                log.debug("Invalid profile entry ", entry, e);
+            }
+        }
+        // class loaders of application are not created yet, so classes are read by surrogate class loaders,
+        // one per code source, and other classes are resolved among all recorded code sources;
+        // results are used only if code source and class bytes are the same
+        final AtomicInteger count = new AtomicInteger();
+        Collection<URL> urls = locations.values();
+        try (URLClassLoader all = new URLClassLoader(urls.toArray(new URL[urls.size()]), null)) {
+            for (Map.Entry<String, URL> e : locations.entrySet())
+                loaders.put(e.getKey(), new LocationClassLoader(e.getValue(), all));
+            ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger index = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PreTransformer-" + index.incrementAndGet());
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+            for (int i = 0; i < classNames.size(); i++) {
+                final String className = classNames.get(i);
+                final String location = classLocations.get(i);
+                final LocationClassLoader loader = loaders.get(location);
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (preTransform(className, location, loader))
+                            count.incrementAndGet();
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            log.warn("Pre-transformation failed", e);
+        } finally {
+            for (LocationClassLoader loader : loaders.values())
+                closeQuietly(loader);
+        }
+        int evicted;
+        synchronized (prepared) {
+            evicted = evictedCount;
+        }
+        log.debug("Pre-transformed ", count.get(), " of ", classNames.size(), " classes in ",
+            System.currentTimeMillis() - startTime, " ms, ", evicted, " results were evicted");
+    }
+
+    private boolean preTransform(String className, String location, LocationClassLoader loader) {
+        try {
+            if (!processClass(className, loader))
+                return false;
+            URL url = loader.findResource(className + ".class");
+            if (url == null)
+                return false;
+            byte[] classfileBuffer;
+            try (InputStream in = url.openStream()) {
+                classfileBuffer = readFully(in);
+            }
+            // cached results of real loading are reused, but results for surrogate class loader are not cached,
+            // because they may differ from the ones which the class loader of application would get
+            Path cachedFilePath = cacheDir != null ? getCachedFilePath(className, classfileBuffer) : null;
+            byte[] res;
+            if (cachedFilePath != null && Files.exists(cachedFilePath)) {
+                res = Files.readAllBytes(cachedFilePath);
+            } else {
+                res = transformImpl(loader, className, null, null, classfileBuffer);
+                if (res == null)
+                    res = classfileBuffer;
+            }
+            putPrepared(getPreparedKey(location, className, classfileBuffer), res == classfileBuffer ? NOT_CHANGED : res);
+            return true;
+        } catch (Exception e) {
+            log.debug("Unable to pre-transform class ", className, e);
+            return false;
+        }
+    }
+
+    private void closeQuietly(URLClassLoader loader) {
+        try {
+            loader.close();
+        } catch (IOException e) {
+            log.debug("Unable to close class loader ", loader, e);
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        FastByteBuffer buf = new FastByteBuffer();
+        buf.readFrom(in);
+        return buf.getBytes();
+    }
+
     private void dumpClassIfNeeded(String className, ClassLoader loader, byte[] classfileBuffer) {
         if (dumpDir == null)
             return;
@@ -123,6 +330,71 @@ public abstract class CachingClassFileTransformer implements ClassFileTransforme
         this.dumpDir = dumpDir;
     }
 
+    /**
+     * Enables predictive pre-transformation.
+     * Classes which are transformed on loading are recorded with their code sources and the profile
+     * is saved to specified file on JVM shutdown. If the file exists, classes recorded in the previous run
+     * are read from their code sources and transformed by specified number of background threads,
+     * so results are ready when the JVM loads the classes.
+     * Pre-transformed results are used only if code source and class bytes are the same as on loading,
+     * results of classes which are not loaded yet are evicted when they take more than 64 MB.
+     * If the profile is set several times, it is saved to the last specified file and classes are
+     * pre-transformed only once.
+     *
+     * <p>Class loaders of application do not exist yet when classes are pre-transformed, so
+     * {@link #processClass(String, ClassLoader)} and {@link #transformImpl} are invoked with a surrogate
+     * class loader of the recorded code source, which parent is {@code null}, and without protection domain.
+     * Other classes are resolved among all recorded code sources only. Do not use the profile with transformers
+     * which depend on identity or hierarchy of class loaders. Such results are not written to
+     * the {@link #setCacheDir(String) cache}, so they do not affect later runs.
+     */
+    public synchronized void setProfile(String profileFile, final int threads) {
+        if (threads <= 0)
+            throw new IllegalArgumentException("threads should be positive: " + threads);
+        this.profileFile = profileFile;
+        if (profileWriter != null)
+            return;
+        profileWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                saveProfile();
+            }
+        }, "ProfileWriter");
+        Runtime.getRuntime().addShutdownHook(profileWriter);
+        Path path = Paths.get(profileFile);
+        if (!Files.exists(path))
+            return;
+        final List<String> entries;
+        try {
+            entries = Files.readAllLines(path, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            log.warn("Unable to read profile from ", profileFile, e);
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                preTransform(entries, threads);
+            }
+        }, "PreTransformer");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    // Finds resources in its code source first, so class files are read from the code source they were recorded with
+    private static class LocationClassLoader extends URLClassLoader {
+        LocationClassLoader(URL location, ClassLoader parent) {
+            super(new URL[] {location}, parent);
+        }
+
+        @Override
+        public URL getResource(String name) {
+            URL url = findResource(name);
+            return url != null ? url : super.getResource(name);
+        }
+    }
+
     public static CachingClassFileTransformer createFromClassFileTransformer(final ClassFileTransformer transformer,
                                                                              Log log, String agentVersion)
     {
@@ -0,0 +1,166 @@
+package com.devexperts.jagent;
+
+/*
+ * #%L
+ * JAgent Impl
+ * %%
+ * Copyright (C) 2015 - 2016 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.*;
+
+/**
+ * Opens class files via class loaders and remembers where they were found.
+ *
+ * <p>For every class loader it keeps the code source (jar or directory URL) which served each package,
+ * so next class files of the same package are opened directly without walking the parent chain and
+ * URL lists of the loaders. Parent loader is still asked first to keep parent-first delegation,
+ * but it answers from its own locations, so class files it does not have are looked up there only once.
+ * Packages which are split among several code sources of the same loader are looked up in full every time.
+ * Class files which are not found are remembered for a short time, so classes which are added to loaders later
+ * (e.g. by {@code URLClassLoader.addURL}) are found as well.
+ */
+class ClassFileLocator {
+    private static final String CLASS_FILE_SUFFIX = ".class";
+    private static final int MAX_MISSING = 10000;
+    private static final long MISSING_EXPIRATION = 1000; // ms
+    // markers of packages which are served by parent loader or split among several code sources
+    private static final Object PARENT = "<parent>";
+    private static final Object SPLIT = "<split>";
+
+    private final long missingExpiration;
+    // ClassLoader -> locations, null key stands for bootstrap class loader
+    private final WeakHashMap<ClassLoader, Locations> locations = new WeakHashMap<>();
+
+    ClassFileLocator() {
+        this(MISSING_EXPIRATION);
+    }
+
+    // class files which are not found are looked up again after specified time in ms
+    ClassFileLocator(long missingExpiration) {
+        this.missingExpiration = missingExpiration;
+    }
+
+    /**
+     * Opens class file of specified class as seen by specified class loader.
+     *
+     * @return stream of class file or {@code null} if it is not found.
+     */
+    InputStream open(String internalClassName, ClassLoader loader) throws IOException {
+        String classFileName = internalClassName + CLASS_FILE_SUFFIX;
+        Locations loc = getLocations(loader);
+        if (loc.isMissing(classFileName))
+            return null;
+        String pkg = getPackage(internalClassName);
+        Object base = loc.getBase(pkg);
+        ClassLoader parent = loader == null ? null : loader.getParent();
+        if (base != null && parent != null) {
+            // keep parent-first delegation, parent remembers its own packages and missing class files
+            InputStream in = open(internalClassName, parent);
+            if (in != null)
+                return in;
+        }
+        if (base != null && base != PARENT && base != SPLIT) {
+            try {
+                // relative URL keeps the stream handler of the code source
+                return new URL((URL) base, classFileName).openStream();
+            } catch (IOException e) {
+                // package is split among several code sources, do not try this shortcut again
+                loc.putBase(pkg, base = SPLIT);
+            }
+        }
+        URL url = loader == null ? getClass().getResource("/" + classFileName) : loader.getResource(classFileName);
+        if (url == null) {
+            // class loader can serve streams without URLs
+            InputStream in = loader == null ? null : loader.getResourceAsStream(classFileName);
+            if (in == null)
+                loc.addMissing(classFileName, System.currentTimeMillis() + missingExpiration);
+            return in;
+        }
+        if (base == null) {
+            if (parent != null && url.equals(parent.getResource(classFileName)))
+                loc.putBase(pkg, PARENT);
+            else
+                loc.putBase(pkg, getBase(url, classFileName));
+        }
+        return url.openStream();
+    }
+
+    private synchronized Locations getLocations(ClassLoader loader) {
+        Locations loc = locations.get(loader);
+        if (loc == null)
+            locations.put(loader, loc = new Locations());
+        return loc;
+    }
+
+    // Returns URL of code source which resolves specified class file name to specified URL, or SPLIT
+    private static Object getBase(URL url, String classFileName) {
+        String s = url.toString();
+        if (!s.endsWith(classFileName))
+            return SPLIT;
+        try {
+            // the same protocol, so the stream handler of the class file URL is kept
+            URL base = new URL(url, s.substring(0, s.length() - classFileName.length()));
+            return new URL(base, classFileName).toString().equals(s) ? base : SPLIT;
+        } catch (IOException e) {
+            return SPLIT;
+        }
+    }
+
+    private static String getPackage(String internalClassName) {
+        int i = internalClassName.lastIndexOf('/');
+        return i < 0 ? "" : internalClassName.substring(0, i);
+    }
+
+    private static class Locations {
+        // package -> URL of code source, PARENT or SPLIT
+        private final Map<String, Object> bases = new HashMap<>();
+        // class file names which were not found -> time when they expire, oldest are forgotten first
+        private final Map<String, Long> missing = new LinkedHashMap<String, Long>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > MAX_MISSING;
+            }
+        };
+
+        synchronized Object getBase(String pkg) {
+            return bases.get(pkg);
+        }
+
+        synchronized void putBase(String pkg, Object base) {
+            bases.put(pkg, base);
+        }
+
+        synchronized boolean isMissing(String classFileName) {
+            Long expiration = missing.get(classFileName);
+            if (expiration == null)
+                return false;
+            if (expiration > System.currentTimeMillis())
+                return true;
+            missing.remove(classFileName);
+            return false;
+        }
+
+        synchronized void addMissing(String classFileName, long expiration) {
+            missing.put(classFileName, expiration);
+        }
+    }
+}
@@ -24,8 +24,14 @@ package com.devexperts.jagent;
 
 import org.objectweb.asm.Opcodes;
 
+import java.util.HashSet;
+import java.util.Set;
+
 public class ClassInfo {
     private static final ClassInfo[] EMPTY_INFOS = new ClassInfo[0];
+    private static final String[] EMPTY_ANNOTATIONS = new String[0];
+    // marks class which member index cannot be built, so its class file is not read again
+    private static final MemberIndex NO_MEMBER_INDEX = new MemberIndex.Builder(true).build();
 
     private final int access;
     private final int version;
@@ -38,14 +44,22 @@ public class ClassInfo {
     private String className;
     private ClassInfo superClassInfo;
     private ClassInfo[] interfaceInfos;
+    private volatile MemberIndex memberIndex;
+    private volatile String[] annotations;
+    // true if member index with annotations cannot be built, so its class file is not read again
+    private volatile boolean memberAnnotationsFailed;
 
-    private ClassInfo(int access, int version, String sourceFile, String internalName, String internalSuperName, String[] internalInterfaceNames) {
+    private ClassInfo(int access, int version, String sourceFile, String internalName, String internalSuperName,
+                      String[] internalInterfaceNames, MemberIndex memberIndex, String[] annotations)
+    {
         this.access = access;
         this.version = version;
         this.sourceFile = sourceFile;
         this.internalName = internalName;
         this.internalSuperName = internalSuperName;
         this.internalInterfaceNames = internalInterfaceNames;
+        this.memberIndex = memberIndex;
+        this.annotations = annotations;
     }
 
     public int getVersion() {
@@ -70,6 +84,11 @@ public class ClassInfo {
         return (access & Opcodes.ACC_INTERFACE) != 0;
     }
 
+    public String getPackageName() {
+        int i = internalName.lastIndexOf('/');
+        return i < 0 ? "" : internalName.substring(0, i);
+    }
+
     public String getInternalSuperName() {
         return internalSuperName;
     }
@@ -120,6 +139,225 @@ public class ClassInfo {
         return ii;
     }
 
+    // Returns null if class file is not found or failed to load
+    public MemberIndex getMemberIndex(ClassInfoCache ciCache, ClassLoader loader) {
+        MemberIndex mi = memberIndex;
+        if (mi == null) {
+            mi = ciCache.buildMemberIndex(internalName, loader);
+            memberIndex = mi = mi == null ? NO_MEMBER_INDEX : mi;
+        }
+        return mi == NO_MEMBER_INDEX ? null : mi;
+    }
+
+    /**
+     * Returns {@code true} if this class is annotated with specified annotation.
+     *
+     * @param annotationDesc annotation type descriptor, e.g. {@code "Ljavax/ejb/Stateless;"}.
+     * @param inherited      {@code true} to check superclasses and implemented interfaces too.
+     *                       Note that unlike {@link java.lang.annotation.Inherited} interfaces are checked as well.
+     */
+    public boolean hasAnnotation(String annotationDesc, boolean inherited, ClassInfoCache ciCache, ClassLoader loader) {
+        if (!inherited)
+            return hasDeclaredAnnotation(annotationDesc, ciCache, loader);
+        return hasInheritedAnnotation(annotationDesc, new HashSet<ClassInfo>(), ciCache, loader);
+    }
+
+    /**
+     * Returns {@code true} if specified method of this class is annotated with specified annotation.
+     *
+     * @param desc           method descriptor, pass {@code null} to match any descriptor.
+     * @param annotationDesc annotation type descriptor.
+     * @param inherited      {@code true} to check methods of supertypes which are overridden by this method too.
+     */
+    public boolean hasMethodAnnotation(String name, String desc, String annotationDesc, boolean inherited,
+                                       ClassInfoCache ciCache, ClassLoader loader)
+    {
+        MemberIndex mi = getMemberAnnotationIndex(ciCache, loader);
+        if (mi == null || !mi.hasMethod(name, desc))
+            return false;
+        if (mi.hasMethodAnnotation(name, desc, annotationDesc))
+            return true;
+        return inherited
+                && hasMethodAnnotationInSupertypes(name, desc, annotationDesc, new HashSet<ClassInfo>(), ciCache, loader);
+    }
+
+    /**
+     * Returns {@code true} if specified field of this class is annotated with specified annotation.
+     *
+     * @param desc           field descriptor, pass {@code null} to match any descriptor.
+     * @param annotationDesc annotation type descriptor.
+     */
+    public boolean hasFieldAnnotation(String name, String desc, String annotationDesc,
+                                      ClassInfoCache ciCache, ClassLoader loader)
+    {
+        MemberIndex mi = getMemberAnnotationIndex(ciCache, loader);
+        return mi != null && mi.hasFieldAnnotation(name, desc, annotationDesc);
+    }
+
+    // Returns empty array if class file is not found or failed to load
+    String[] getAnnotations(ClassInfoCache ciCache, ClassLoader loader) {
+        String[] a = annotations;
+        if (a == null) {
+            a = ciCache.buildAnnotations(internalName, loader);
+            annotations = a = a == null ? EMPTY_ANNOTATIONS : a;
+        }
+        return a;
+    }
+
+    // Returns null if class file is not found or failed to load
+    private MemberIndex getMemberAnnotationIndex(ClassInfoCache ciCache, ClassLoader loader) {
+        MemberIndex mi = memberIndex;
+        if (mi == null || !mi.hasAnnotations() && !memberAnnotationsFailed) {
+            MemberIndex built = ciCache.buildMemberIndex(internalName, loader);
+            if (built != null)
+                memberIndex = mi = built;
+            else if (mi == null)
+                memberIndex = mi = NO_MEMBER_INDEX;
+            else
+                memberAnnotationsFailed = true; // keep index without annotations for other lookups
+        }
+        return mi == NO_MEMBER_INDEX || !mi.hasAnnotations() ? null : mi;
+    }
+
+    private boolean hasDeclaredAnnotation(String annotationDesc, ClassInfoCache ciCache, ClassLoader loader) {
+        for (String a : getAnnotations(ciCache, loader)) {
+            if (a.equals(annotationDesc))
+                return true;
+        }
+        return false;
+    }
+
+    // visited contains already checked supertypes, so interfaces reachable via several paths are checked once
+    private boolean hasInheritedAnnotation(String annotationDesc, Set<ClassInfo> visited,
+                                           ClassInfoCache ciCache, ClassLoader loader)
+    {
+        if (!visited.add(this))
+            return false;
+        if (hasDeclaredAnnotation(annotationDesc, ciCache, loader))
+            return true;
+        ClassInfo superClassInfo = getSuperclassInfo(ciCache, loader);
+        if (superClassInfo != null && superClassInfo.hasInheritedAnnotation(annotationDesc, visited, ciCache, loader))
+            return true;
+        for (ClassInfo ti : getInterfaceInfos(ciCache, loader)) {
+            if (ti != null && ti.hasInheritedAnnotation(annotationDesc, visited, ciCache, loader))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean hasInheritedMethodAnnotation(String name, String desc, String annotationDesc, Set<ClassInfo> visited,
+                                                 ClassInfoCache ciCache, ClassLoader loader)
+    {
+        if (!visited.add(this))
+            return false;
+        MemberIndex mi = getMemberAnnotationIndex(ciCache, loader);
+        if (mi != null && mi.hasMethodAnnotation(name, desc, annotationDesc, Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC))
+            return true;
+        return hasMethodAnnotationInSupertypes(name, desc, annotationDesc, visited, ciCache, loader);
+    }
+
+    private boolean hasMethodAnnotationInSupertypes(String name, String desc, String annotationDesc, Set<ClassInfo> visited,
+                                                    ClassInfoCache ciCache, ClassLoader loader)
+    {
+        ClassInfo superClassInfo = getSuperclassInfo(ciCache, loader);
+        if (superClassInfo != null
+                && superClassInfo.hasInheritedMethodAnnotation(name, desc, annotationDesc, visited, ciCache, loader))
+        {
+            return true;
+        }
+        for (ClassInfo ti : getInterfaceInfos(ciCache, loader)) {
+            if (ti != null && ti.hasInheritedMethodAnnotation(name, desc, annotationDesc, visited, ciCache, loader))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns class info of the nearest class or interface in the hierarchy of this class (including itself)
+     * that declares specified method, or {@code null} if there is no such one.
+     * Superclasses are searched before interfaces.
+     *
+     * @param desc method descriptor, pass {@code null} to match any descriptor.
+     */
+    public ClassInfo findMethodDeclaringClass(String name, String desc, ClassInfoCache ciCache, ClassLoader loader) {
+        return findDeclaringClass(name, desc, false, false, ciCache, loader);
+    }
+
+    /**
+     * Returns class info of the nearest class or interface in the hierarchy of this class (including itself)
+     * that declares specified field, or {@code null} if there is no such one.
+     *
+     * @param desc field descriptor, pass {@code null} to match any descriptor.
+     */
+    public ClassInfo findFieldDeclaringClass(String name, String desc, ClassInfoCache ciCache, ClassLoader loader) {
+        return findDeclaringClass(name, desc, true, false, ciCache, loader);
+    }
+
+    /**
+     * Returns class info of the class which provides implementation of specified method
+     * for instances of this class, or {@code null} if the method is not implemented.
+     * Superclasses are searched before default methods of interfaces.
+     */
+    public ClassInfo findMethodImplementation(String name, String desc, ClassInfoCache ciCache, ClassLoader loader) {
+        return findDeclaringClass(name, desc, false, true, ciCache, loader);
+    }
+
+    /**
+     * Returns {@code true} if specified method declared in this class overrides or implements
+     * a method declared in one of its supertypes.
+     */
+    public boolean overridesMethod(String name, String desc, ClassInfoCache ciCache, ClassLoader loader) {
+        if (name.startsWith("<"))
+            return false; // constructors and static initializers
+        int notVirtual = Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC;
+        MemberIndex mi = getMemberIndex(ciCache, loader);
+        if (mi == null || mi.getMethodAccess(name, desc, notVirtual, 0) < 0)
+            return false;
+        ClassInfo superClassInfo = getSuperclassInfo(ciCache, loader);
+        for (ClassInfo c = superClassInfo; c != null; c = c.getSuperclassInfo(ciCache, loader)) {
+            MemberIndex smi = c.getMemberIndex(ciCache, loader);
+            // package-private methods are overridden within the same package only
+            int visible = c.getPackageName().equals(getPackageName()) ? 0 : Opcodes.ACC_PUBLIC | Opcodes.ACC_PROTECTED;
+            if (smi != null && smi.getMethodAccess(name, desc, notVirtual, visible) >= 0)
+                return true;
+        }
+        for (ClassInfo c = this; c != null; c = c.getSuperclassInfo(ciCache, loader)) {
+            for (ClassInfo ti : c.getInterfaceInfos(ciCache, loader)) {
+                if (ti != null && ti.findDeclaringClass(name, desc, false, false, ciCache, loader) != null)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private ClassInfo findDeclaringClass(String name, String desc, boolean field, boolean implementation,
+                                         ClassInfoCache ciCache, ClassLoader loader)
+    {
+        for (ClassInfo c = this; c != null; c = c.getSuperclassInfo(ciCache, loader)) {
+            if (c.declares(name, desc, field, implementation, ciCache, loader))
+                return c;
+        }
+        for (ClassInfo c = this; c != null; c = c.getSuperclassInfo(ciCache, loader)) {
+            for (ClassInfo ti : c.getInterfaceInfos(ciCache, loader)) {
+                ClassInfo res = ti == null ? null : ti.findDeclaringClass(name, desc, field, implementation, ciCache, loader);
+                if (res != null)
+                    return res;
+            }
+        }
+        return null;
+    }
+
+    private boolean declares(String name, String desc, boolean field, boolean implementation,
+                             ClassInfoCache ciCache, ClassLoader loader)
+    {
+        MemberIndex mi = getMemberIndex(ciCache, loader);
+        if (mi == null)
+            return false;
+        if (field)
+            return mi.getFieldAccess(name, desc) >= 0;
+        return mi.getMethodAccess(name, desc, implementation ? Opcodes.ACC_ABSTRACT : 0, 0) >= 0;
+    }
+
     private boolean implementsInterface(ClassInfo that, ClassInfoCache ciCache, ClassLoader loader) {
         for (ClassInfo c = this; c != null; c = c.getRequiredSuperclassInfo(ciCache, loader)) {
             for (ClassInfo ti : c.getRequiredInterfaceInfos(ciCache, loader)) {
@@ -157,6 +395,8 @@ public class ClassInfo {
         private String internalSuperName;
         private String[] internalInterfaceNames;
         private String sourceFile;
+        private MemberIndex memberIndex;
+        private String[] annotations;
 
         Builder access(int access) {
             this.access = access;
@@ -188,8 +428,19 @@ public class ClassInfo {
             return this;
         }
 
+        Builder memberIndex(MemberIndex memberIndex) {
+            this.memberIndex = memberIndex;
+            return this;
+        }
+
+        Builder annotations(String[] annotations) {
+            this.annotations = annotations;
+            return this;
+        }
+
         ClassInfo build() {
-            return new ClassInfo(access, version, sourceFile, internalName, internalSuperName, internalInterfaceNames);
+            return new ClassInfo(access, version, sourceFile, internalName, internalSuperName, internalInterfaceNames,
+                memberIndex, annotations);
         }
     }
 
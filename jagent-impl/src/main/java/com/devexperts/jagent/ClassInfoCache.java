@@ -24,18 +24,52 @@ package com.devexperts.jagent;
 
 import org.objectweb.asm.ClassReader;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.*;
 
 public class ClassInfoCache {
 
     private final Log log;
+    private final int maxEntriesPerLoader;
+    private final boolean softReferences;
+    private volatile int indexOptions;
+    private final ClassFileLocator locator = new ClassFileLocator();
 
     // ClassLoader -> internalClassName -> ClassInfo
     private WeakHashMap<ClassLoader, ClassInfoMap> classInfoCache = new WeakHashMap<>();
 
+    /**
+     * Creates unbounded cache which keeps all built {@link ClassInfo class infos} while their loaders are alive.
+     */
     public ClassInfoCache(Log log) {
+        this(log, 0, false);
+    }
+
+    /**
+     * Creates cache which is bounded by number of entries per class loader.
+     * Evicted class infos are rebuilt on demand.
+     *
+     * @param log                 log to be used.
+     * @param maxEntriesPerLoader maximal number of class infos per class loader, pass {@code 0} for unbounded cache.
+     * @param softReferences      {@code true} to hold class infos via soft references,
+     *                            so they can be reclaimed under memory pressure.
+     */
+    public ClassInfoCache(Log log, int maxEntriesPerLoader, boolean softReferences) {
+        if (maxEntriesPerLoader < 0)
+            throw new IllegalArgumentException("maxEntriesPerLoader should be non-negative: " + maxEntriesPerLoader);
         this.log = log;
+        this.maxEntriesPerLoader = maxEntriesPerLoader;
+        this.softReferences = softReferences;
+    }
+
+    /**
+     * Sets options of {@link ClassInfoVisitor} which are used to build class infos,
+     * e.g. {@link ClassInfoVisitor#INDEX_ANNOTATIONS} to record class annotations eagerly.
+     * Indexes which are not built eagerly are built on first query.
+     */
+    public void setIndexOptions(int indexOptions) {
+        this.indexOptions = indexOptions;
     }
 
     public synchronized ClassInfo getClassInfo(String internalClassName, ClassLoader loader) {
@@ -51,10 +85,10 @@ public class ClassInfoCache {
 
     // Returns null if not found or failed to load
     public synchronized ClassInfo getOrBuildClassInfo(String internalClassName, ClassLoader loader) {
-        ClassInfo classInfo = getOrInitClassInfoMap(loader).get(internalClassName);
+        ClassInfoMap classInfoMap = getOrInitClassInfoMap(loader);
+        ClassInfo classInfo = classInfoMap.get(internalClassName);
         if (classInfo != null)
             return classInfo;
-        ClassInfoMap classInfoMap = classInfoCache.get(loader);
         classInfo = buildClassInfo(internalClassName, loader);
         if (classInfo != null)
             classInfoMap.put(internalClassName, classInfo);
@@ -76,11 +110,50 @@ public class ClassInfoCache {
             if (loader != null)
                 getOrInitClassInfoMap(loader.getParent());
             // at first time when class loader is discovered, tracked classes in this class loader are cached
-            classInfoCache.put(loader, classInfoMap = new ClassInfoMap());
+            classInfoCache.put(loader, classInfoMap = new ClassInfoMap(maxEntriesPerLoader, softReferences));
         }
         return classInfoMap;
     }
 
+    /**
+     * Returns {@code true} if specified class is annotated with specified annotation.
+     *
+     * @param annotationDesc annotation type descriptor, e.g. {@code "Ljavax/ejb/Stateless;"}.
+     * @param inherited      {@code true} to check superclasses and implemented interfaces too.
+     * @see ClassInfo#hasAnnotation(String, boolean, ClassInfoCache, ClassLoader)
+     */
+    public boolean hasAnnotation(String internalClassName, String annotationDesc, ClassLoader loader, boolean inherited) {
+        ClassInfo classInfo = getOrBuildClassInfo(internalClassName, loader);
+        return classInfo != null && classInfo.hasAnnotation(annotationDesc, inherited, this, loader);
+    }
+
+    /**
+     * Returns {@code true} if specified method is annotated with specified annotation.
+     *
+     * @param desc           method descriptor, pass {@code null} to match any descriptor.
+     * @param annotationDesc annotation type descriptor.
+     * @param inherited      {@code true} to check overridden methods of supertypes too.
+     * @see ClassInfo#hasMethodAnnotation(String, String, String, boolean, ClassInfoCache, ClassLoader)
+     */
+    public boolean hasMethodAnnotation(String internalClassName, String name, String desc, String annotationDesc,
+                                       ClassLoader loader, boolean inherited)
+    {
+        ClassInfo classInfo = getOrBuildClassInfo(internalClassName, loader);
+        return classInfo != null && classInfo.hasMethodAnnotation(name, desc, annotationDesc, inherited, this, loader);
+    }
+
+    // Returns null if not found or failed to load
+    MemberIndex buildMemberIndex(String internalClassName, ClassLoader loader) {
+        ClassInfo classInfo = readClassInfo(internalClassName, loader, ClassInfoVisitor.INDEX_MEMBER_ANNOTATIONS);
+        return classInfo == null ? null : classInfo.getMemberIndex(this, loader);
+    }
+
+    // Returns null if not found or failed to load
+    String[] buildAnnotations(String internalClassName, ClassLoader loader) {
+        ClassInfo classInfo = readClassInfo(internalClassName, loader, ClassInfoVisitor.INDEX_ANNOTATIONS);
+        return classInfo == null ? null : classInfo.getAnnotations(this, loader);
+    }
+
     private ClassInfo buildClassInfo(String internalClassName, ClassLoader loader) {
         // check if parent class loader has this class info
         if (loader != null)  {
@@ -89,16 +162,15 @@ public class ClassInfoCache {
                 return classInfo;
         }
         // actually build it
+        return readClassInfo(internalClassName, loader, indexOptions);
+    }
+
+    private ClassInfo readClassInfo(String internalClassName, ClassLoader loader, int options) {
         try {
-            String classFileName = internalClassName + ".class";
-            InputStream in;
-            if (loader == null)
-                in = getClass().getResourceAsStream("/" + classFileName);
-            else
-                in = loader.getResourceAsStream(classFileName);
+            InputStream in = openClassFile(internalClassName, loader);
             if (in == null)
                 return null;
-            ClassInfoVisitor visitor = new ClassInfoVisitor();
+            ClassInfoVisitor visitor = new ClassInfoVisitor(options);
             try {
                 ClassReader cr = new ClassReader(in);
                 cr.accept(visitor, ClassReader.SKIP_DEBUG + ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
@@ -112,4 +184,8 @@ public class ClassInfoCache {
         }
     }
 
+    private InputStream openClassFile(String internalClassName, ClassLoader loader) throws IOException {
+        return locator.open(internalClassName, loader);
+    }
+
 }
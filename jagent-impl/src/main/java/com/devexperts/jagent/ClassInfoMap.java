@@ -22,18 +22,164 @@ package com.devexperts.jagent;
  * #L%
  */
 
+import java.lang.ref.SoftReference;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * Map of {@link ClassInfo} for a single class loader.
+ *
+ * <p>By default the map is unbounded. When created with a positive {@code maxSize} it evicts entries
+ * with the CLOCK algorithm: entries are kept in a ring, a hand which keeps its position between evictions
+ * gives a second chance to entries which were queried since the last pass (supertypes shared by many classes)
+ * and evicts the first one which was not, so every eviction takes amortized constant time.
+ * {@code java/lang/Object} is never evicted. Evicted entries are rebuilt on demand by {@link ClassInfoCache}.
+ *
+ * <p>Class infos of classes which have no readable class file (e.g. generated or hidden classes) cannot be rebuilt,
+ * they should be put with {@link #putPinned(String, ClassInfo)}. Pinned entries are never evicted
+ * and are not counted in {@code maxSize}, so other classes, including the ones which are being defined,
+ * should not be pinned.
+ */
 public class ClassInfoMap {
-    private final Map<String, ClassInfo> map = new HashMap<>();
+    private static final String OBJECT = "java/lang/Object";
+
+    private final Map<String, Entry> map = new HashMap<>();
+    private final int maxSize;
+    private final boolean softReferences;
+    // evictable entries of bounded map and stack of its free slots
+    private final Entry[] ring;
+    private final int[] freeSlots;
+    private int freeCount;
+    private int hand;
+
+    public ClassInfoMap() {
+        this(0, false);
+    }
+
+    /**
+     * Creates map of class information.
+     *
+     * @param maxSize        maximal number of entries, pass {@code 0} for an unbounded map.
+     * @param softReferences {@code true} to hold entries via {@link SoftReference soft references}.
+     */
+    public ClassInfoMap(int maxSize, boolean softReferences) {
+        this.maxSize = maxSize;
+        this.softReferences = softReferences;
+        ring = maxSize > 0 ? new Entry[maxSize] : null;
+        freeSlots = maxSize > 0 ? new int[maxSize] : null;
+        for (int i = maxSize; --i >= 0; )
+            freeSlots[freeCount++] = i;
+    }
+
+    public synchronized ClassInfo get(String internalClassName) {
+        Entry entry = map.get(internalClassName);
+        if (entry == null)
+            return null;
+        ClassInfo classInfo = entry.get();
+        if (classInfo == null) {
+            // soft reference was cleared
+            remove(entry);
+            return null;
+        }
+        entry.referenced = true;
+        return classInfo;
+    }
 
-    public ClassInfo get(String internalClassName) {
-        return map.get(internalClassName);
+    public synchronized void put(String internalClassName, ClassInfo classInfo) {
+        put(internalClassName, softReferences && !OBJECT.equals(internalClassName) ?
+            new SoftEntry(internalClassName, classInfo) : new StrongEntry(internalClassName, classInfo),
+            OBJECT.equals(internalClassName));
     }
 
-    public void put(String internalClassName, ClassInfo classInfo) {
-        map.put(internalClassName, classInfo);
+    /**
+     * Puts class info which is never evicted and is held strongly.
+     */
+    public synchronized void putPinned(String internalClassName, ClassInfo classInfo) {
+        put(internalClassName, new StrongEntry(internalClassName, classInfo), true);
     }
 
+    public synchronized int size() {
+        return map.size();
+    }
+
+    private void put(String internalClassName, Entry entry, boolean pinned) {
+        Entry old = map.put(internalClassName, entry);
+        if (old != null)
+            removeFromRing(old);
+        if (ring == null || pinned)
+            return;
+        if (freeCount == 0)
+            evict();
+        entry.slot = freeSlots[--freeCount];
+        ring[entry.slot] = entry;
+    }
+
+    // Frees one slot of the full ring
+    private void evict() {
+        while (true) {
+            Entry entry = ring[hand];
+            if (entry.referenced && entry.get() != null) {
+                entry.referenced = false; // second chance
+                hand = (hand + 1) % ring.length;
+            } else {
+                remove(entry);
+                hand = (hand + 1) % ring.length;
+                return;
+            }
+        }
+    }
+
+    private void remove(Entry entry) {
+        if (map.get(entry.name) == entry)
+            map.remove(entry.name);
+        removeFromRing(entry);
+    }
+
+    private void removeFromRing(Entry entry) {
+        if (entry.slot >= 0) {
+            ring[entry.slot] = null;
+            freeSlots[freeCount++] = entry.slot;
+            entry.slot = -1;
+        }
+    }
+
+    private abstract static class Entry {
+        final String name;
+        boolean referenced;
+        int slot = -1; // -1 if not in ring
+
+        Entry(String name) {
+            this.name = name;
+        }
+
+        abstract ClassInfo get();
+    }
+
+    private static class StrongEntry extends Entry {
+        private final ClassInfo classInfo;
+
+        StrongEntry(String name, ClassInfo classInfo) {
+            super(name);
+            this.classInfo = classInfo;
+        }
+
+        @Override
+        ClassInfo get() {
+            return classInfo;
+        }
+    }
+
+    private static class SoftEntry extends Entry {
+        private final SoftReference<ClassInfo> ref;
+
+        SoftEntry(String name, ClassInfo classInfo) {
+            super(name);
+            ref = new SoftReference<>(classInfo);
+        }
+
+        @Override
+        ClassInfo get() {
+            return ref.get();
+        }
+    }
 }
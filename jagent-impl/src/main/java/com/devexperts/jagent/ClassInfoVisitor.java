@@ -22,14 +22,70 @@ package com.devexperts.jagent;
  * #L%
  */
 
+import org.objectweb.asm.AnnotationVisitor;
 import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class ClassInfoVisitor extends ClassVisitor {
+    /**
+     * Option to build {@link MemberIndex} of visited class eagerly.
+     * Otherwise it is built on first query via {@link ClassInfo#getMemberIndex(ClassInfoCache, ClassLoader)}.
+     */
+    public static final int INDEX_MEMBERS = 1;
+    /**
+     * Option to record descriptors of class annotations.
+     * Otherwise they are read on first query via {@link ClassInfo#hasAnnotation(String, boolean, ClassInfoCache, ClassLoader)}.
+     */
+    public static final int INDEX_ANNOTATIONS = 2;
+    /**
+     * Option to record descriptors of method and field annotations, implies {@link #INDEX_MEMBERS}.
+     */
+    public static final int INDEX_MEMBER_ANNOTATIONS = 4;
+
     private ClassInfo.Builder classInfoBuilder = new ClassInfo.Builder();
+    private MemberIndex.Builder memberIndexBuilder;
+    private List<String> annotations;
+    private MethodVisitor memberAnnotationsMethodVisitor;
+    private FieldVisitor memberAnnotationsFieldVisitor;
 
     public ClassInfoVisitor() {
+        this(0);
+    }
+
+    /**
+     * Creates visitor with specified options.
+     *
+     * @param options bit mask of {@link #INDEX_MEMBERS}, {@link #INDEX_ANNOTATIONS}
+     *                and {@link #INDEX_MEMBER_ANNOTATIONS}.
+     */
+    public ClassInfoVisitor(int options) {
         super(Opcodes.ASM5);
+        if ((options & INDEX_ANNOTATIONS) != 0)
+            annotations = new ArrayList<>();
+        if ((options & INDEX_MEMBER_ANNOTATIONS) != 0) {
+            memberIndexBuilder = new MemberIndex.Builder(true);
+            memberAnnotationsMethodVisitor = new MethodVisitor(Opcodes.ASM5) {
+                @Override
+                public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+                    memberIndexBuilder.addAnnotation(desc);
+                    return null;
+                }
+            };
+            memberAnnotationsFieldVisitor = new FieldVisitor(Opcodes.ASM5) {
+                @Override
+                public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+                    memberIndexBuilder.addAnnotation(desc);
+                    return null;
+                }
+            };
+        } else if ((options & INDEX_MEMBERS) != 0) {
+            memberIndexBuilder = new MemberIndex.Builder();
+        }
     }
 
     @Override
@@ -42,7 +98,32 @@ public class ClassInfoVisitor extends ClassVisitor {
         classInfoBuilder.sourceFile(source);
     }
 
+    @Override
+    public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+        if (annotations != null)
+            annotations.add(desc.intern());
+        return null;
+    }
+
+    @Override
+    public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+        if (memberIndexBuilder != null)
+            memberIndexBuilder.addField(access, name, desc);
+        return memberAnnotationsFieldVisitor;
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+        if (memberIndexBuilder != null)
+            memberIndexBuilder.addMethod(access, name, desc);
+        return memberAnnotationsMethodVisitor;
+    }
+
     public ClassInfo buildClassInfo() {
+        if (annotations != null)
+            classInfoBuilder.annotations(annotations.toArray(new String[annotations.size()]));
+        if (memberIndexBuilder != null)
+            classInfoBuilder.memberIndex(memberIndexBuilder.build());
         return classInfoBuilder.build();
     }
 }
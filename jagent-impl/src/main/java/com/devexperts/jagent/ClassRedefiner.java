@@ -0,0 +1,624 @@
+package com.devexperts.jagent;
+
+/*
+ * #%L
+ * JAgent Impl
+ * %%
+ * Copyright (C) 2015 - 2016 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.*;
+import java.lang.reflect.Proxy;
+import java.security.ProtectionDomain;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Redefines already loaded classes.
+ *
+ * <p>All loaded classes are swept once for the whole list of transformers: every class file is read once
+ * and passed through the transformers in order, like the JVM does on class loading, and one combined set
+ * of class definitions is redefined per pass. Classes for which transformers return the same bytes
+ * (e.g. cached results of unchanged classes) are not redefined.
+ *
+ * <p>In {@link #retransform(List) retransformation} mode class files are not read at all,
+ * the JVM passes current bytes of classes to registered transformers.
+ *
+ * <p>Classes are redefined in batches of configured size, so the number of safepoints stays low.
+ * When a batch is rejected by the JVM, it is bisected to isolate the bad classes, which are quarantined
+ * and not redefined again, while the rest of the batch is redefined. Classes which transformers fail on
+ * are quarantined as well, other classes are transformed further.
+ *
+ * <p>Optionally, the number of redefined classes per second is limited and classes of priority packages
+ * are redefined first.
+ *
+ * <p>Besides the sweep of all loaded classes, specified classes can be redefined or retransformed at any time,
+ * quarantined classes are remembered between invocations. Such requests do not wait for a running sweep,
+ * their batches are applied between batches of the sweep, and the sweep skips classes which were redefined
+ * by them meanwhile, so their newer bytes are not replaced by the ones which the sweep prepared earlier.
+ *
+ * <p>Class files are read and transformed on a bounded pool of worker threads, every worker uses its own buffer.
+ * Results are collected in the order of classes, so the set of class definitions does not depend
+ * on the number of threads.
+ */
+class ClassRedefiner {
+    private static final int CHUNK_SIZE = 256;
+
+    // set while the current thread redefines classes, see guard(ClassFileTransformer)
+    private static final ThreadLocal<Boolean> REDEFINING = new ThreadLocal<>();
+
+    private final Instrumentation inst;
+    private final Log log;
+    private final String agentName;
+    private int threads = 1;
+    private boolean isVerboseRedefinition;
+    private int batchSize = Integer.MAX_VALUE;
+    private int rate;
+    private String[] priorityPackages = new String[0];
+    private volatile OriginalClassStore originals;
+    private volatile boolean cancelled;
+    private final Set<Class> quarantine =
+        Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<Class, Boolean>()));
+    // guards application of batches, so batches of sweeps and requests do not interleave
+    private final Object batchLock = new Object();
+    // true while the sweep of all loaded classes is running, guarded by batchLock
+    private boolean sweeping;
+    // classes which were redefined by requests during the sweep, guarded by batchLock
+    private final Set<Class> requested = Collections.newSetFromMap(new WeakHashMap<Class, Boolean>());
+    // tracks classes which are loaded while transformers are registered, see startTracking()
+    private LoadedClassRegistry tracking;
+    // classes which are loaded before transformers are registered, they are redefined by the next sweep
+    private Collection<Class> loadedBeforeRegistration;
+
+    private final ThreadLocal<FastByteBuffer> buffers = new ThreadLocal<FastByteBuffer>() {
+        @Override
+        protected FastByteBuffer initialValue() {
+            return new FastByteBuffer();
+        }
+    };
+
+    ClassRedefiner(Instrumentation inst, Log log, String agentName) {
+        this.inst = inst;
+        this.log = log;
+        this.agentName = agentName;
+    }
+
+    void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    void setVerbose(boolean isVerboseRedefinition) {
+        this.isVerboseRedefinition = isVerboseRedefinition;
+    }
+
+    void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    // classes per second, 0 for unlimited
+    void setRate(int rate) {
+        this.rate = rate;
+    }
+
+    void setPriorityPackages(String[] priorityPackages) {
+        this.priorityPackages = priorityPackages;
+    }
+
+    // remembers original bytes of changed classes if not null
+    void setOriginals(OriginalClassStore originals) {
+        this.originals = originals;
+    }
+
+    /**
+     * Cancels current and further redefinitions, redefinition stops after the current batch.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Wraps transformer to be registered in {@link Instrumentation}.
+     * The wrapper skips redefinitions which are made by this class, because they are already transformed,
+     * and remembers original bytes of changed classes in specified store if it is not {@code null}.
+     */
+    static ClassFileTransformer wrap(final ClassFileTransformer transformer, final OriginalClassStore originals) {
+        return new ClassFileTransformer() {
+            @Override
+            public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                                    ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException
+            {
+                if (classBeingRedefined != null && REDEFINING.get() != null)
+                    return null;
+                byte[] result = transformer.transform(loader, className, classBeingRedefined, protectionDomain,
+                    classfileBuffer);
+                if (result != null && isSame(result, classfileBuffer))
+                    return null; // the JVM does not need to parse the same bytes again
+                if (result != null && originals != null && className != null)
+                    originals.put(loader, className, classfileBuffer);
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Starts tracking of loaded classes, it is invoked before transformers are registered in instrumentation
+     * when the {@link #redefine(List) sweep} runs after that. Classes which are loaded after {@link #stopTracking()}
+     * are transformed on loading, so the sweep redefines only classes which are loaded before, in one pass.
+     */
+    synchronized void startTracking() {
+        tracking = new LoadedClassRegistry(inst);
+        loadedBeforeRegistration = new ArrayList<>(Arrays.asList(tracking.start()));
+    }
+
+    /**
+     * Stops tracking of loaded classes, it is invoked after transformers are registered in instrumentation.
+     */
+    synchronized void stopTracking() {
+        loadedBeforeRegistration.addAll(tracking.drain());
+        tracking.stop();
+        tracking = null;
+    }
+
+    /**
+     * Redefines all loaded classes which are processed by specified transformers.
+     *
+     * @return number of classes which were not redefined because transformers returned unchanged bytes.
+     */
+    synchronized int redefine(List<ClassFileTransformer> transformers) {
+        AtomicInteger unchanged = new AtomicInteger();
+        ExecutorService executor = threads > 1 ? createExecutor() : null;
+        Collection<Class> loaded = loadedBeforeRegistration;
+        loadedBeforeRegistration = null;
+        // classes loaded during redefinition are tracked by the registry and processed by the next pass,
+        // unless transformers are registered already and transform them on loading
+        LoadedClassRegistry registry = loaded == null ? new LoadedClassRegistry(inst) : null;
+        setSweeping(true);
+        try {
+            // weak, so class loaders are not retained during redefinition
+            Set<Class> done = Collections.newSetFromMap(new WeakHashMap<Class, Boolean>());
+            Collection<Class> classes = registry != null ? Arrays.asList(registry.start()) : loaded;
+            for (int pass = 1; !cancelled && redefine(classes, transformers, executor, done, pass, true, unchanged) > 0 &&
+                registry != null; pass++)
+            {
+                classes = registry.drain();
+            }
+            return unchanged.get();
+        } finally {
+            setSweeping(false);
+            if (registry != null)
+                registry.stop();
+            if (executor != null)
+                executor.shutdown();
+        }
+    }
+
+    /**
+     * Redefines specified classes which are processed by specified transformers.
+     */
+    void redefine(Class[] classes, List<ClassFileTransformer> transformers) {
+        ExecutorService executor = threads > 1 && classes.length > CHUNK_SIZE ? createExecutor() : null;
+        try {
+            redefine(Arrays.asList(classes), transformers, executor, new HashSet<Class>(), 1, false,
+                new AtomicInteger());
+        } finally {
+            if (executor != null)
+                executor.shutdown();
+        }
+    }
+
+    // Returns number of transformed classes
+    private int redefine(Collection<Class> classes, List<ClassFileTransformer> transformers, ExecutorService executor,
+                         Set<Class> done, int pass, boolean sweep, AtomicInteger unchanged)
+    {
+        long startTime = System.currentTimeMillis();
+        List<Class> todo = new ArrayList<>(classes.size());
+        for (Class clazz : classes) {
+            if (clazz.isArray())
+                continue;
+            if (!done.add(clazz) || quarantine.contains(clazz))
+                continue;
+            if (!isProcessed(clazz, transformers))
+                continue;
+            if (!hasClassFile(clazz)) {
+                log.debug("Skipping class without class file: ", clazz.getName());
+                continue;
+            }
+            todo.add(clazz);
+        }
+        prioritize(todo);
+        log.debug("Transforming classes pass #", pass, "...");
+        List<ClassDefinition> cdl = transform(todo, transformers, executor, unchanged);
+        long transformTime = System.currentTimeMillis();
+        log.debug("Transformed ", cdl.size(), " of ", todo.size(), " classes in pass #", pass,
+            " in ", transformTime - startTime, " ms");
+        if (cdl.isEmpty())
+            return 0;
+        log.debug("Redefining classes pass #", pass, "...");
+        int quarantined = quarantine.size();
+        int batches = applyInBatches(cdl, REDEFINE, sweep);
+        log.debug("Redefined ", cdl.size() - (quarantine.size() - quarantined), " classes in ", batches,
+            " batches in pass #", pass,
+            " in ", System.currentTimeMillis() - transformTime, " ms");
+        return cdl.size();
+    }
+
+    /**
+     * Retransforms all loaded classes which are processed by specified transformers.
+     * Transformers should be already registered as retransformation capable.
+     */
+    synchronized void retransform(List<ClassFileTransformer> transformers) {
+        setSweeping(true);
+        try {
+            retransform(inst.getAllLoadedClasses(), transformers, true);
+        } finally {
+            setSweeping(false);
+        }
+    }
+
+    /**
+     * Retransforms specified classes which are processed by specified transformers.
+     * Transformers should be already registered as retransformation capable.
+     */
+    void retransform(Class[] classes, List<ClassFileTransformer> transformers) {
+        retransform(classes, transformers, false);
+    }
+
+    private void retransform(Class[] classes, List<ClassFileTransformer> transformers, boolean sweep) {
+        long startTime = System.currentTimeMillis();
+        List<Class> todo = new ArrayList<>();
+        for (Class clazz : classes) {
+            if (!clazz.isArray() && !quarantine.contains(clazz) && inst.isModifiableClass(clazz)
+                    && isProcessed(clazz, transformers))
+            {
+                todo.add(clazz);
+            }
+        }
+        prioritize(todo);
+        log.debug("Retransforming ", todo.size(), " classes...");
+        int quarantined = quarantine.size();
+        int batches = applyInBatches(todo, RETRANSFORM, sweep);
+        log.debug("Retransformed ", todo.size() - (quarantine.size() - quarantined), " classes in ", batches, " batches in ",
+            System.currentTimeMillis() - startTime, " ms");
+    }
+
+    /**
+     * Redefines specified classes with their original bytes, the rate is not limited.
+     * It can be invoked after {@link #cancel()}.
+     */
+    synchronized void restore(List<ClassDefinition> cdl) {
+        restoreInBatches(cdl, REDEFINE);
+    }
+
+    /**
+     * Retransforms specified classes without filtering to restore them after transformers are removed,
+     * the rate is not limited. It can be invoked after {@link #cancel()}.
+     */
+    synchronized void restoreByRetransformation(List<Class> classes) {
+        restoreInBatches(classes, RETRANSFORM);
+    }
+
+    private <T> void restoreInBatches(List<T> items, BatchOperation<T> op) {
+        long startTime = System.currentTimeMillis();
+        int quarantined = quarantine.size();
+        int size = isVerboseRedefinition ? 1 : batchSize;
+        for (int i = 0; i < items.size(); i += size) {
+            synchronized (batchLock) {
+                applyBisecting(items.subList(i, Math.min(i + size, items.size())), op);
+            }
+        }
+        log.debug("Restored ", items.size() - (quarantine.size() - quarantined), " classes in ",
+            System.currentTimeMillis() - startTime, " ms");
+    }
+
+    // Returns number of batches, i.e. safepoints, including the ones caused by bisection
+    private <T> int applyInBatches(List<T> items, BatchOperation<T> op, boolean sweep) {
+        int batches = 0;
+        long startTime = System.currentTimeMillis();
+        int size = isVerboseRedefinition ? 1 : rate > 0 ? Math.min(batchSize, rate) : batchSize;
+        for (int i = 0; i < items.size() && !cancelled; i += size) {
+            List<T> batch = items.subList(i, Math.min(i + size, items.size()));
+            throttle(startTime, i);
+            synchronized (batchLock) {
+                if (sweep) {
+                    batch = skipRequested(batch, op);
+                } else if (sweeping) {
+                    for (T item : batch)
+                        requested.add(op.getClass(item));
+                }
+                if (!batch.isEmpty())
+                    batches += applyBisecting(batch, op);
+            }
+        }
+        return batches;
+    }
+
+    // Returns classes of the sweep batch which were not redefined by requests meanwhile, guarded by batchLock
+    private <T> List<T> skipRequested(List<T> batch, BatchOperation<T> op) {
+        if (requested.isEmpty())
+            return batch;
+        List<T> result = new ArrayList<>(batch.size());
+        for (T item : batch) {
+            if (!requested.contains(op.getClass(item)))
+                result.add(item);
+        }
+        return result;
+    }
+
+    private void setSweeping(boolean sweeping) {
+        synchronized (batchLock) {
+            this.sweeping = sweeping;
+            requested.clear();
+        }
+    }
+
+    // Sleeps to keep redefinition rate, startTime is the time when the first of throttledClasses was processed
+    private void throttle(long startTime, long throttledClasses) {
+        if (rate <= 0)
+            return;
+        long delay = startTime + throttledClasses * 1000 / rate - System.currentTimeMillis();
+        if (delay <= 0)
+            return;
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while redefining classes", e);
+        }
+    }
+
+    // Moves classes from priority packages to the beginning keeping the order of other classes
+    private void prioritize(List<Class> classes) {
+        if (priorityPackages.length == 0)
+            return;
+        List<List<Class>> groups = new ArrayList<>(priorityPackages.length + 1);
+        for (int i = 0; i <= priorityPackages.length; i++)
+            groups.add(new ArrayList<Class>());
+        for (Class clazz : classes) {
+            int i = 0;
+            while (i < priorityPackages.length && !clazz.getName().startsWith(priorityPackages[i]))
+                i++;
+            groups.get(i).add(clazz);
+        }
+        classes.clear();
+        for (List<Class> group : groups)
+            classes.addAll(group);
+    }
+
+    private <T> int applyBisecting(List<T> batch, BatchOperation<T> op) {
+        try {
+            if (isVerboseRedefinition)
+                log.debug(op.getName(), " class ", op.getClass(batch.get(0)).getName());
+            op.apply(inst, batch);
+            return 1;
+        } catch (Exception | LinkageError e) {
+            if (batch.size() == 1) {
+                Class clazz = op.getClass(batch.get(0));
+                quarantine.add(clazz);
+                log.error("Failed to ", op.getName().toLowerCase(), " class ", clazz.getName(), ", it is quarantined", e);
+                return 1;
+            }
+            log.debug("Failed to ", op.getName().toLowerCase(), " batch of ", batch.size(), " classes, bisecting: ", e);
+            int mid = batch.size() / 2;
+            return 1 + applyBisecting(batch.subList(0, mid), op) + applyBisecting(batch.subList(mid, batch.size()), op);
+        }
+    }
+
+    private List<ClassDefinition> transform(List<Class> todo, List<ClassFileTransformer> transformers,
+                                            ExecutorService executor, AtomicInteger unchanged)
+    {
+        List<ClassDefinition> cdl = new ArrayList<>();
+        if (executor == null) {
+            transform(todo, transformers, cdl, unchanged);
+            return cdl;
+        }
+        List<Future<List<ClassDefinition>>> chunks = new ArrayList<>();
+        for (int i = 0; i < todo.size(); i += CHUNK_SIZE)
+            chunks.add(executor.submit(new TransformTask(todo.subList(i, Math.min(i + CHUNK_SIZE, todo.size())), transformers,
+                unchanged)));
+        // collect results in the order of classes
+        for (Future<List<ClassDefinition>> chunk : chunks) {
+            try {
+                cdl.addAll(chunk.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while transforming classes", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                if (cause instanceof Error)
+                    throw (Error) cause;
+                throw new IllegalStateException(cause);
+            }
+        }
+        return cdl;
+    }
+
+    private void transform(List<Class> classes, List<ClassFileTransformer> transformers, List<ClassDefinition> cdl,
+                           AtomicInteger unchanged)
+    {
+        FastByteBuffer buf = buffers.get();
+        for (Class clazz : classes) {
+            String name = getInternalName(clazz);
+            InputStream is = clazz.getResourceAsStream("/" + name + ".class");
+            buf.clear();
+            if (is != null)
+                try {
+                    try {
+                        buf.readFrom(is);
+                    } finally {
+                        is.close();
+                    }
+                } catch (IOException e) {
+                    log.warn("Failed to read class resource: ", name, e);
+                }
+            if (buf.isEmpty()) {
+                log.warn("Cannot read class resource: ", name);
+                continue;
+            }
+            byte[] bytes = buf.getBytes();
+            byte[] result;
+            try {
+                result = transform(clazz, name, bytes, transformers);
+            } catch (IllegalClassFormatException | RuntimeException | LinkageError e) {
+                // one bad class does not abort the whole redefinition
+                quarantine.add(clazz);
+                log.error("Failed to transform class ", clazz.getName(), ", it is quarantined", e);
+                continue;
+            }
+            if (result != null && isSame(result, bytes)) {
+                // e.g. cached result of a class which is not changed by transformation
+                unchanged.incrementAndGet();
+                continue;
+            }
+            if (result != null) {
+                cdl.add(new ClassDefinition(clazz, result));
+                if (originals != null)
+                    originals.put(clazz.getClassLoader(), name, bytes);
+            }
+        }
+    }
+
+    // Returns null if class was not changed by any transformer
+    private static byte[] transform(Class clazz, String name, byte[] bytes, List<ClassFileTransformer> transformers)
+            throws IllegalClassFormatException
+    {
+        ClassLoader loader = clazz.getClassLoader();
+        byte[] result = null;
+        for (ClassFileTransformer transformer : transformers) {
+            if (transformer instanceof CachingClassFileTransformer
+                    && !((CachingClassFileTransformer) transformer).processClass(name, loader))
+            {
+                continue;
+            }
+            byte[] transformed = transformer.transform(loader, name, clazz, clazz.getProtectionDomain(),
+                result != null ? result : bytes);
+            if (transformed != null)
+                result = transformed;
+        }
+        return result;
+    }
+
+    // Cheap checks go first, results of transformation mostly differ in length
+    static boolean isSame(byte[] result, byte[] bytes) {
+        return result == bytes || result.length == bytes.length && Arrays.equals(result, bytes);
+    }
+
+    // Hidden and VM anonymous classes (e.g. lambdas) have '/' in their names, they, proxies and reflection
+    // accessors are generated in memory, so there are no class files to transform
+    private static boolean hasClassFile(Class clazz) {
+        String name = clazz.getName();
+        return name.indexOf('/') < 0 && !Proxy.isProxyClass(clazz) &&
+            !name.startsWith("sun.reflect.Generated") && !name.startsWith("jdk.internal.reflect.Generated");
+    }
+
+    private static boolean isProcessed(Class clazz, List<ClassFileTransformer> transformers) {
+        for (ClassFileTransformer transformer : transformers) {
+            if (!(transformer instanceof CachingClassFileTransformer)
+                    || ((CachingClassFileTransformer) transformer).processClass(getInternalName(clazz), clazz.getClassLoader()))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private ExecutorService createExecutor() {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger index = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, agentName + "-Redefiner-" + index.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    private static String getInternalName(Class clazz) {
+        return clazz.getName().replace('.', '/');
+    }
+
+    private abstract static class BatchOperation<T> {
+        private final String name;
+
+        BatchOperation(String name) {
+            this.name = name;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        abstract Class getClass(T item);
+
+        abstract void apply(Instrumentation inst, List<T> batch) throws Exception;
+    }
+
+    private static final BatchOperation<ClassDefinition> REDEFINE = new BatchOperation<ClassDefinition>("Redefine") {
+        @Override
+        Class getClass(ClassDefinition cd) {
+            return cd.getDefinitionClass();
+        }
+
+        @Override
+        void apply(Instrumentation inst, List<ClassDefinition> batch) throws Exception {
+            REDEFINING.set(Boolean.TRUE);
+            try {
+                inst.redefineClasses(batch.toArray(new ClassDefinition[batch.size()]));
+            } finally {
+                REDEFINING.remove();
+            }
+        }
+    };
+
+    private static final BatchOperation<Class> RETRANSFORM = new BatchOperation<Class>("Retransform") {
+        @Override
+        Class getClass(Class clazz) {
+            return clazz;
+        }
+
+        @Override
+        void apply(Instrumentation inst, List<Class> batch) throws Exception {
+            inst.retransformClasses(batch.toArray(new Class[batch.size()]));
+        }
+    };
+
+    private class TransformTask implements Callable<List<ClassDefinition>> {
+        private final List<Class> classes;
+        private final List<ClassFileTransformer> transformers;
+        private final AtomicInteger unchanged;
+
+        TransformTask(List<Class> classes, List<ClassFileTransformer> transformers, AtomicInteger unchanged) {
+            this.classes = classes;
+            this.transformers = transformers;
+            this.unchanged = unchanged;
+        }
+
+        @Override
+        public List<ClassDefinition> call() {
+            List<ClassDefinition> cdl = new ArrayList<>(classes.size());
+            transform(classes, transformers, cdl, unchanged);
+            return cdl;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.devexperts.jagent;
+
+/*
+ * #%L
+ * JAgent Impl
+ * %%
+ * Copyright (C) 2015 - 2016 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Selects loaded classes to be redefined by {@link JAgent#redefineClasses(ClassSelector)}.
+ *
+ * <p>Selectors which are restricted to a class loader take candidates from
+ * {@link Instrumentation#getInitiatedClasses(ClassLoader)}, so the cost of selection
+ * depends on the number of classes of this class loader only.
+ */
+public abstract class ClassSelector {
+
+    /**
+     * Predicate on class information, see {@link #forClassInfo(ClassInfoCache, ClassInfoPredicate)}.
+     */
+    public interface ClassInfoPredicate {
+        boolean accept(ClassInfo classInfo, ClassLoader loader);
+    }
+
+    /**
+     * Returns {@code true} if specified class should be redefined.
+     */
+    public abstract boolean accept(Class<?> clazz);
+
+    /**
+     * Returns selector which accepts classes accepted by both this and specified selectors.
+     */
+    public ClassSelector and(final ClassSelector other) {
+        final ClassSelector self = this;
+        return new ClassSelector() {
+            @Override
+            public boolean accept(Class<?> clazz) {
+                return self.accept(clazz) && other.accept(clazz);
+            }
+
+            @Override
+            Class[] getCandidates(Instrumentation inst) {
+                return self.isRestricted() ? self.getCandidates(inst) : other.getCandidates(inst);
+            }
+
+            @Override
+            boolean isRestricted() {
+                return self.isRestricted() || other.isRestricted();
+            }
+        };
+    }
+
+    /**
+     * Returns selector of classes defined by specified class loader,
+     * {@code null} stands for bootstrap class loader.
+     */
+    public static ClassSelector forLoader(final ClassLoader loader) {
+        return new ClassSelector() {
+            @Override
+            public boolean accept(Class<?> clazz) {
+                return clazz.getClassLoader() == loader;
+            }
+
+            @Override
+            Class[] getCandidates(Instrumentation inst) {
+                return inst.getInitiatedClasses(loader);
+            }
+
+            @Override
+            boolean isRestricted() {
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Returns selector of classes which names start with specified prefix, e.g. {@code "com.example."}.
+     */
+    public static ClassSelector forPackage(final String prefix) {
+        return new ClassSelector() {
+            @Override
+            public boolean accept(Class<?> clazz) {
+                return clazz.getName().startsWith(prefix);
+            }
+        };
+    }
+
+    /**
+     * Returns selector of classes which information matches specified predicate.
+     * Information is taken from specified cache and built from class files if it is absent.
+     */
+    public static ClassSelector forClassInfo(final ClassInfoCache ciCache, final ClassInfoPredicate predicate) {
+        return new ClassSelector() {
+            @Override
+            public boolean accept(Class<?> clazz) {
+                ClassLoader loader = clazz.getClassLoader();
+                ClassInfo classInfo = ciCache.getOrBuildClassInfo(clazz.getName().replace('.', '/'), loader);
+                return classInfo != null && predicate.accept(classInfo, loader);
+            }
+        };
+    }
+
+    Class[] select(Instrumentation inst) {
+        List<Class> selected = new ArrayList<>();
+        for (Class clazz : getCandidates(inst)) {
+            if (!clazz.isArray() && accept(clazz))
+                selected.add(clazz);
+        }
+        return selected.toArray(new Class[selected.size()]);
+    }
+
+    Class[] getCandidates(Instrumentation inst) {
+        return inst.getAllLoadedClasses();
+    }
+
+    boolean isRestricted() {
+        return false;
+    }
+}
@@ -32,8 +32,6 @@ class FastFmtUtil {
 
     private static final int TEAR_LINE_LENGTH = 120;
 
-    private static final ThreadLocal<TimeAndDateFormatter> TD_FMT = new ThreadLocal<>();
-
     public static void printlnTearLine(PrintWriter out, char c) {
         for (int i = 0; i < TEAR_LINE_LENGTH; i++)
             out.print(c);
@@ -101,14 +99,8 @@ class FastFmtUtil {
         out.print("s");
     }
 
-    public static void printTimeAndDate(PrintWriter out, long millis) {
-        TimeAndDateFormatter fmt = TD_FMT.get();
-        if (fmt == null)
-            TD_FMT.set(fmt = new TimeAndDateFormatter());
-        fmt.print(out, millis);
-    }
-
-    private static class TimeAndDateFormatter {
+    // Caches formatted day, hour and zone of current hour
+    static class TimeAndDateFormatter {
         private static final long SECOND = 1000;
         private static final long MINUTE = 60 * SECOND;
         private static final long HOUR = 60 * MINUTE;
@@ -121,7 +113,7 @@ class FastFmtUtil {
         String lastHour;
         String lastZone;
 
-        public void print(PrintWriter out, long millis) {
+        public void update(long millis) {
             if (lastHourStart == 0 || millis < lastHourStart || millis >= lastHourStart + HOUR) {
                 lastHourStart = millis / HOUR * HOUR;
                 Date date = new Date(lastHourStart);
@@ -129,16 +121,6 @@ class FastFmtUtil {
                 lastHour = hourFmt.format(date);
                 lastZone = zoneFmt.format(date);
             }
-            out.print(lastDay);
-            out.print('T');
-            out.print(lastHour);
-            out.print(':');
-            print2(out, (int)((millis / MINUTE) % 60), true);
-            out.print(':');
-            print2(out, (int)((millis / SECOND) % 60), true);
-            out.print('.');
-            print3(out, (int)(millis % SECOND), true);
-            out.print(lastZone);
         }
     }
 }
@@ -25,7 +25,7 @@ package com.devexperts.jagent;
 import java.io.*;
 
 class FastOutputStreamWriter extends Writer {
-    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    static final char[] HEX = "0123456789abcdef".toCharArray();
 
     private final BufferedOutputStream out;
 
@@ -33,6 +33,11 @@ class FastOutputStreamWriter extends Writer {
         this.out = new BufferedOutputStream(out);
     }
 
+    // Writes bytes which are already encoded, see LogBuffer
+    void writeBytes(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+
     public void flush() throws IOException {
         out.flush();
     }
@@ -22,6 +22,7 @@ package com.devexperts.jagent;
  * #L%
  */
 
+import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 
 import static org.objectweb.asm.Opcodes.V1_6;
@@ -38,6 +39,27 @@ public class FrameClassWriter extends ClassWriter {
         this.ciCache = ciCache;
     }
 
+    /**
+     * Creates class writer which copies constant pool and all methods that are not changed
+     * by the transformation from specified {@link ClassReader class reader} as is.
+     * Frames and maximums are computed only for methods that are actually transformed,
+     * so this writer should be used when the class reader is accepted with a visitor chain
+     * which passes most of the methods through.
+     *
+     * <p>Note that the constant pool of the original class is kept,
+     * so constants that are not used after the transformation remain in the class.
+     *
+     * @param classReader  class reader of the original class, it should be used to run the transformation.
+     * @param loader       class loader of the transformed class.
+     * @param ciCache      cache of class infos.
+     * @param classVersion version of the transformed class.
+     */
+    public FrameClassWriter(ClassReader classReader, ClassLoader loader, ClassInfoCache ciCache, int classVersion) {
+        super(classReader, classVersion > V1_6 ? COMPUTE_FRAMES : COMPUTE_MAXS);
+        this.loader = loader;
+        this.ciCache = ciCache;
+    }
+
     /**
      * The reason of overriding is to avoid ClassCircularityError (or LinkageError with "duplicate class loading" reason)
      * which occurs during processing of classes related to java.util.TimeZone and use cache of ClassInfo.
@@ -22,10 +22,9 @@ package com.devexperts.jagent;
  * #L%
  */
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.lang.instrument.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Java agent abstraction that contains a lot of boilerplate code.
@@ -39,15 +38,30 @@ import java.util.*;
 public abstract class JAgent {
     // Required parameters
     private final Instrumentation inst;
-    private final List<ClassFileTransformer> transformers = new ArrayList<>();
+    // copy-on-write, so transformers can be removed while already loaded classes are redefined
+    private final List<ClassFileTransformer> transformers = new CopyOnWriteArrayList<>();
     private final Log log;
     private final String agentName;
     private final String version;
     // Instance variables
     private boolean started = false;
+    private volatile Future<?> redefinitionFuture;
+    private volatile ClassRedefiner redefiner;
+    private boolean useRetransform;
+    private OriginalClassStore originals;
+    // transformer -> its wrapper which is registered in instrumentation
+    private final Map<ClassFileTransformer, ClassFileTransformer> registeredTransformers = new LinkedHashMap<>();
+    private volatile boolean stopped;
     // Optional parameters
     private boolean redefine = false;
+    private boolean retransform = false;
     private boolean isVerboseRedefinition = false;
+    private boolean detachable = false;
+    private int redefinitionThreads = 1;
+    private int redefinitionBatchSize = 1000;
+    private boolean asyncRedefinition = false;
+    private int redefinitionRate = 0;
+    private String[] redefinitionPriorityPackages = new String[0];
 
     public JAgent(Instrumentation inst, String agentName, String version, Log log) {
         this.inst = inst;
@@ -76,6 +90,33 @@ public abstract class JAgent {
         this.transformers.addAll(transformers);
     }
 
+    /**
+     * Removes transformer which was added to this agent, so it is not invoked for loaded and redefined classes
+     * any more. Classes which were already transformed by it are not restored, use {@link #stop()} for that.
+     * Note that transformers are registered in instrumentation via wrappers, so
+     * {@link Instrumentation#removeTransformer(ClassFileTransformer)} cannot remove them.
+     *
+     * @return {@code true} if the transformer was added to this agent and is removed now.
+     */
+    public synchronized boolean removeTransformer(ClassFileTransformer transformer) {
+        if (!transformers.remove(transformer))
+            return false;
+        ClassFileTransformer wrapper = registeredTransformers.remove(transformer);
+        if (wrapper != null)
+            inst.removeTransformer(wrapper);
+        return true;
+    }
+
+    /**
+     * Set to {@code true} to be able to {@link #stop() stop} the agent, e.g. when it is attached dynamically.
+     * Detachable agent keeps original bytes of classes which are changed by its transformers, deflated in memory,
+     * or only their names when {@link #setRetransformClasses(boolean) retransformation} is used.
+     */
+    public void setDetachable(boolean detachable) {
+        checkNotStarted();
+        this.detachable = detachable;
+    }
+
     /**
      * Set to {@code true} to redefine classes one at a time instead of all together.
      */
@@ -84,6 +125,30 @@ public abstract class JAgent {
         this.isVerboseRedefinition = isVerboseRedefinition;
     }
 
+    /**
+     * Sets number of threads which read and transform already loaded classes during redefinition.
+     * Transformers should be thread-safe when more than one thread is used, so classes are
+     * transformed in the redefining thread by default.
+     */
+    public void setRedefinitionThreads(int redefinitionThreads) {
+        checkNotStarted();
+        if (redefinitionThreads <= 0)
+            throw new IllegalArgumentException("redefinitionThreads should be positive: " + redefinitionThreads);
+        this.redefinitionThreads = redefinitionThreads;
+    }
+
+    /**
+     * Sets maximal number of classes which are redefined at once, every batch takes one JVM safepoint.
+     * If the JVM rejects a batch, it is bisected to find the classes which cannot be redefined,
+     * they are logged and skipped. Default value is {@code 1000}.
+     */
+    public void setRedefinitionBatchSize(int redefinitionBatchSize) {
+        checkNotStarted();
+        if (redefinitionBatchSize <= 0)
+            throw new IllegalArgumentException("redefinitionBatchSize should be positive: " + redefinitionBatchSize);
+        this.redefinitionBatchSize = redefinitionBatchSize;
+    }
+
     /**
      * Set to {@code true} to enable classes redefinition.
      */
@@ -91,6 +156,61 @@ public abstract class JAgent {
         this.redefine = redefine;
     }
 
+    /**
+     * Set to {@code true} to use {@link Instrumentation#retransformClasses(Class[]) retransformation}
+     * instead of redefinition for already loaded classes. Transformers are registered as retransformation capable
+     * and the JVM passes current class bytes to them, so class files are not read and changes made by other
+     * agents are preserved. Requires {@code Can-Retransform-Classes: true} in agent's manifest,
+     * falls back to redefinition if retransformation is not supported.
+     * Takes effect only if {@link #setRedefineClasses(boolean) redefinition} is enabled.
+     */
+    public void setRetransformClasses(boolean retransform) {
+        checkNotStarted();
+        this.retransform = retransform;
+    }
+
+    /**
+     * Set to {@code true} to redefine already loaded classes in background, so {@link #go()} does not block.
+     * Transformers are registered before redefinition starts, so new classes are transformed as soon as they
+     * are loaded, while already loaded classes are redefined by a low-priority daemon thread.
+     * Use {@link #getRedefinitionFuture()} to wait for completion.
+     */
+    public void setAsyncRedefinition(boolean asyncRedefinition) {
+        checkNotStarted();
+        this.asyncRedefinition = asyncRedefinition;
+    }
+
+    /**
+     * Sets maximal number of classes which are redefined per second, {@code 0} means unlimited (default).
+     * It is useful with {@link #setAsyncRedefinition(boolean) asynchronous redefinition}
+     * to reduce impact on running application.
+     */
+    public void setRedefinitionRate(int classesPerSecond) {
+        checkNotStarted();
+        if (classesPerSecond < 0)
+            throw new IllegalArgumentException("classesPerSecond should be non-negative: " + classesPerSecond);
+        this.redefinitionRate = classesPerSecond;
+    }
+
+    /**
+     * Sets prefixes of class names (e.g. {@code "com.example.service."}) which are redefined first.
+     * Classes matching earlier prefixes are redefined before classes matching later ones.
+     */
+    public void setRedefinitionPriorityPackages(String... prefixes) {
+        checkNotStarted();
+        this.redefinitionPriorityPackages = prefixes.clone();
+    }
+
+    /**
+     * Returns future which is completed when already loaded classes are redefined,
+     * or {@code null} if the agent is not started yet.
+     * The future is completed before {@link #go()} returns unless
+     * {@link #setAsyncRedefinition(boolean) asynchronous redefinition} is used.
+     */
+    public Future<?> getRedefinitionFuture() {
+        return redefinitionFuture;
+    }
+
     /**
      * Method that add transformers to instrumentation and redefines already loaded classes.
      * Use {@code JAgentRunner} to invoke it.
@@ -98,79 +218,172 @@ public abstract class JAgent {
     public void go() throws Exception {
         started = true;
         log.info("Loading ", agentName, " ", version, "...");
-        if (redefine) {
-            log.info("Start redefining with ", agentName);
-            // redefine all classes loader so far
-            for (ClassFileTransformer transformer : transformers)
-                redefine(transformer);
-            log.info("Done redefining with ", agentName, ".");
+        useRetransform = retransform && inst.isRetransformClassesSupported();
+        if (retransform && !useRetransform)
+            log.warn("Retransformation is not supported, redefinition is used instead");
+        // JVM keeps original bytes of retransformable classes itself
+        originals = detachable ? new OriginalClassStore(!useRetransform) : null;
+        redefiner = createRedefiner();
+        FutureTask<Void> task = new FutureTask<>(createRedefinitionTask());
+        redefinitionFuture = task;
+        if (!redefine) {
+            addTransformersToInstrumentation(useRetransform);
+            task.run();
+        } else if (useRetransform || asyncRedefinition) {
+            // transformers should be registered first to be invoked by retransformation
+            // and to transform classes which are loaded during asynchronous redefinition,
+            // such classes are not redefined again
+            if (!useRetransform)
+                redefiner.startTracking();
+            try {
+                addTransformersToInstrumentation(useRetransform);
+            } finally {
+                if (!useRetransform)
+                    redefiner.stopTracking();
+            }
+            if (asyncRedefinition)
+                startRedefinitionThread(task);
+            else
+                runRedefinitionTask(task);
+        } else {
+            runRedefinitionTask(task);
+            addTransformersToInstrumentation(false);
         }
-        for (ClassFileTransformer transformer : transformers) {
-            inst.addTransformer(transformer);
+    }
+
+    /**
+     * Redefines (or retransforms if {@link #setRetransformClasses(boolean) retransformation} is used)
+     * already loaded classes which are accepted by specified selector using agent's transformers.
+     * It can be invoked at any time after the agent is started, e.g. to re-instrument classes
+     * of one class loader or package after configuration change.
+     *
+     * @throws IllegalStateException if the agent is not started yet.
+     */
+    public void redefineClasses(ClassSelector selector) throws Exception {
+        ClassRedefiner redefiner = this.redefiner;
+        if (redefiner == null)
+            throw new IllegalStateException("Agent is not started");
+        if (stopped)
+            throw new IllegalStateException("Agent is stopped");
+        Class[] classes = selector.select(inst);
+        log.debug("Selected ", classes.length, " classes to be redefined");
+        if (useRetransform)
+            redefiner.retransform(classes, transformers);
+        else
+            redefiner.redefine(classes, transformers);
+    }
+
+    /**
+     * Stops the agent: removes its transformers from instrumentation and restores original bytes of classes
+     * which were changed by them, so the agent does not affect the application any more.
+     * Running asynchronous redefinition is cancelled.
+     * It is used to detach dynamically attached agents, see {@code JAgentRunner#stopAgent}.
+     *
+     * @throws IllegalStateException if the agent is not started yet or is not {@link #setDetachable(boolean) detachable}.
+     */
+    public synchronized void stop() {
+        ClassRedefiner redefiner = this.redefiner;
+        if (redefiner == null)
+            throw new IllegalStateException("Agent is not started");
+        if (!detachable)
+            throw new IllegalStateException("Agent is not detachable");
+        if (stopped)
+            return;
+        stopped = true;
+        log.info("Stopping ", agentName, "...");
+        redefiner.cancel();
+        try {
+            redefinitionFuture.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while stopping " + agentName, e);
+        } catch (ExecutionException e) {
+            // already logged, classes which were redefined are restored anyway
         }
+        for (ClassFileTransformer wrapper : registeredTransformers.values())
+            inst.removeTransformer(wrapper);
+        registeredTransformers.clear();
+        if (useRetransform)
+            redefiner.restoreByRetransformation(originals.drainClasses(inst));
+        else
+            redefiner.restore(originals.drainDefinitions(inst));
+        log.info("Stopped ", agentName, ".");
     }
 
-    private void redefine(ClassFileTransformer transformer)
-            throws IllegalClassFormatException, ClassNotFoundException, UnmodifiableClassException {
-        ArrayList<Class> classes = new ArrayList<>();
-        HashSet<Class> done = new HashSet<>();
-        FastByteBuffer buf = new FastByteBuffer();
-        CachingClassFileTransformer ourTransformer = transformer instanceof CachingClassFileTransformer ?
-            (CachingClassFileTransformer) transformer : null;
-        for (int pass = 1; ; pass++) {
-            classes.addAll(Arrays.asList(inst.getAllLoadedClasses()));
-            List<ClassDefinition> cdl = new ArrayList<>(classes.size());
-            log.debug("Redefining classes pass #", pass, "...");
-            for (Class clazz : classes) {
-                if (clazz.isArray())
-                    continue;
-                if (!done.add(clazz))
-                    continue;
-                String name = clazz.getName().replace('.', '/');
-                if (ourTransformer != null && !ourTransformer.processClass(name, clazz.getClassLoader()))
-                    continue;
-                InputStream is = clazz.getResourceAsStream("/" + name + ".class");
-                buf.clear();
-                if (is != null)
-                    try {
-                        try {
-                            buf.readFrom(is);
-                        } finally {
-                            is.close();
-                        }
-                    } catch (IOException e) {
-                        log.warn("Failed to read class resource: ", name, e);
-                    }
-                if (buf.isEmpty()) {
-                    log.warn("Cannot read class resource: ", name);
-                    continue;
+    private Callable<Void> createRedefinitionTask() {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                if (!redefine)
+                    return null;
+                String operation = useRetransform ? "retransforming" : "redefining";
+                log.info("Start ", operation, " with ", agentName);
+                // unchanged classes are detected only in redefinition mode
+                int unchanged = 0;
+                if (useRetransform)
+                    redefiner.retransform(transformers);
+                else
+                    unchanged = redefiner.redefine(transformers);
+                if (unchanged > 0) {
+                    log.info("Done ", operation, " with ", agentName, ", redefinition of ", unchanged,
+                        " unchanged classes avoided.");
+                } else {
+                    log.info("Done ", operation, " with ", agentName, ".");
                 }
-                byte[] result = transformer.transform(
-                        clazz.getClassLoader(), name, clazz, clazz.getProtectionDomain(), buf.getBytes());
-                if (result != null)
-                    cdl.add(new ClassDefinition(clazz, result));
+                return null;
             }
-            classes.clear();
-            if (cdl.isEmpty())
-                break; // all classes were redefined
-            log.debug("Redefining classes pass #", pass, "...");
-
-            if (isVerboseRedefinition) {
-                for (ClassDefinition cd : cdl) {
-                    String name = cd.getDefinitionClass().getName();
-                    log.debug("Redefining class ", name);
-                    try {
-                        inst.redefineClasses(cd);
-                    } catch (Exception e) {
-                        log.error("Failed to redefine class ", name, e);
-                    }
+        };
+    }
+
+    private void runRedefinitionTask(FutureTask<Void> task) throws Exception {
+        task.run();
+        try {
+            task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+                throw (Exception) cause;
+            throw (Error) cause;
+        }
+    }
+
+    private void startRedefinitionThread(final FutureTask<Void> task) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                task.run();
+                try {
+                    task.get();
+                } catch (Exception e) {
+                    log.error("Failed to redefine classes with ", agentName, e);
                 }
-            } else {
-                inst.redefineClasses(cdl.toArray(new ClassDefinition[cdl.size()]));
             }
+        }, agentName + "-Redefinition");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private synchronized void addTransformersToInstrumentation(boolean canRetransform) {
+        for (ClassFileTransformer transformer : transformers) {
+            // redefinition invokes registered transformers, do not transform classes twice
+            ClassFileTransformer wrapper = ClassRedefiner.wrap(transformer, originals);
+            registeredTransformers.put(transformer, wrapper);
+            inst.addTransformer(wrapper, canRetransform);
         }
     }
 
+    private ClassRedefiner createRedefiner() {
+        ClassRedefiner redefiner = new ClassRedefiner(inst, log, agentName);
+        redefiner.setThreads(redefinitionThreads);
+        redefiner.setVerbose(isVerboseRedefinition);
+        redefiner.setBatchSize(redefinitionBatchSize);
+        redefiner.setRate(redefinitionRate);
+        redefiner.setPriorityPackages(redefinitionPriorityPackages);
+        redefiner.setOriginals(originals);
+        return redefiner;
+    }
+
     private void checkNotStarted() {
         if (started)
             throw new IllegalStateException("The agent was started already");
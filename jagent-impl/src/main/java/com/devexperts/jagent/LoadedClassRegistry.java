@@ -0,0 +1,132 @@
+package com.devexperts.jagent;
+
+/*
+ * #%L
+ * JAgent Impl
+ * %%
+ * Copyright (C) 2015 - 2016 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.*;
+
+/**
+ * Tracks classes which are defined after the registry is started.
+ *
+ * <p>The registry is registered in {@link Instrumentation} as a transformer that never changes classes.
+ * It only remembers names of newly defined classes with their class loaders, class loaders are referenced weakly.
+ * The classes are found by {@link #drain()} among {@link Instrumentation#getInitiatedClasses(ClassLoader) classes}
+ * of these class loaders, so consecutive redefinition passes process only classes loaded since the previous pass
+ * instead of scanning {@link Instrumentation#getAllLoadedClasses()} again. Classes are never loaded by name,
+ * so class loaders are not invoked and classes which are not accessible by name are found as well.
+ */
+class LoadedClassRegistry implements ClassFileTransformer {
+    private final Instrumentation inst;
+
+    // ClassLoader -> names of defined classes, null key stands for bootstrap class loader
+    private WeakHashMap<ClassLoader, Set<String>> defined = new WeakHashMap<>();
+    // classes which were still being defined on previous drain, they are looked up once more
+    private WeakHashMap<ClassLoader, Set<String>> pending = new WeakHashMap<>();
+
+    LoadedClassRegistry(Instrumentation inst) {
+        this.inst = inst;
+    }
+
+    /**
+     * Starts tracking and returns all classes which are loaded at the moment.
+     */
+    Class[] start() {
+        inst.addTransformer(this);
+        return inst.getAllLoadedClasses();
+    }
+
+    void stop() {
+        inst.removeTransformer(this);
+        synchronized (this) {
+            defined.clear();
+            pending.clear();
+        }
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer)
+    {
+        if (classBeingRedefined == null && className != null) {
+            String name = className.replace('/', '.');
+            synchronized (this) {
+                Set<String> names = defined.get(loader);
+                if (names == null)
+                    defined.put(loader, names = new HashSet<>());
+                names.add(name);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns classes which are defined since the previous invocation.
+     * Classes which failed to be defined are skipped.
+     */
+    List<Class> drain() {
+        WeakHashMap<ClassLoader, Set<String>> drained;
+        WeakHashMap<ClassLoader, Set<String>> retried;
+        synchronized (this) {
+            if (defined.isEmpty() && pending.isEmpty())
+                return Collections.emptyList();
+            drained = defined;
+            retried = pending;
+            defined = new WeakHashMap<>();
+            pending = new WeakHashMap<>();
+        }
+        List<Class> classes = new ArrayList<>();
+        for (Map.Entry<ClassLoader, Set<String>> e : retried.entrySet())
+            findLoadedClasses(inst, e.getKey(), e.getValue(), classes);
+        for (Map.Entry<ClassLoader, Set<String>> e : drained.entrySet()) {
+            Set<String> names = e.getValue();
+            findLoadedClasses(inst, e.getKey(), names, classes);
+            if (!names.isEmpty()) {
+                synchronized (this) {
+                    pending.put(e.getKey(), names);
+                }
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * Adds classes defined by specified class loader which have specified names to the result.
+     * Names of found classes are removed from the set.
+     *
+     * @param names binary class names, e.g. {@code "java.lang.String"}.
+     */
+    static void findLoadedClasses(Instrumentation inst, ClassLoader loader, Set<String> names, List<Class> result) {
+        if (names.isEmpty())
+            return;
+        for (Class clazz : inst.getInitiatedClasses(loader)) {
+            // initiated classes include the ones defined by parent loaders
+            if (clazz.getClassLoader() == loader && names.remove(clazz.getName())) {
+                result.add(clazz);
+                if (names.isEmpty())
+                    return;
+            }
+        }
+    }
+}
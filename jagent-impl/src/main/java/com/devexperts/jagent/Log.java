@@ -24,17 +24,32 @@ package com.devexperts.jagent;
 
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Lightweight logger implementation.
+ *
+ * <p>Messages are written by the calling thread, or by a background thread if the logger is asynchronous,
+ * see {@link #Log(String, Level, String, int, OverflowPolicy)}.
+ *
+ * <p>Arguments are appended into pooled buffers without string concatenation and every line is encoded
+ * and written at once, so logging strings, classes and boxed numbers does not allocate memory.
  */
 public class Log {
+    // time to wait for the background thread to write remaining messages on shutdown
+    private static final long SHUTDOWN_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+    // every N-th DEBUG or INFO message is kept when the buffer is more than half full and SAMPLE policy is used
+    private static final int SAMPLE_RATE = 10;
 
     private final Level logLevel;
     private final String agentName;
     private final LogPrintWriter out;
+    private final AsyncWriter asyncWriter; // null if logging is synchronous
 
     /**
      * Creates logger.
@@ -44,145 +59,180 @@ public class Log {
      * @param logFile   file to which log will be recorded, pass {@code null} to use standard output stream.
      */
     public Log(String agentName, Level level, String logFile) {
+        this(agentName, level, logFile, 0, null);
+    }
+
+    /**
+     * Creates logger which writes messages by a background thread. Messages are put into a preallocated
+     * ring buffer, the background thread formats and writes them in batches and flushes the output once per batch.
+     * Remaining messages are written on JVM shutdown.
+     *
+     * @param agentName      agent name to be used in header
+     * @param level          logging level
+     * @param logFile        file to which log will be recorded, pass {@code null} to use standard output stream.
+     * @param bufferSize     number of messages in the buffer, pass {@code 0} to write messages synchronously.
+     * @param overflowPolicy what to do with messages when the buffer is full.
+     */
+    public Log(String agentName, Level level, String logFile, int bufferSize, OverflowPolicy overflowPolicy) {
+        if (bufferSize < 0)
+            throw new IllegalArgumentException("bufferSize should not be negative: " + bufferSize);
+        if (bufferSize > 0 && overflowPolicy == null)
+            throw new NullPointerException("overflowPolicy");
         this.logLevel = level;
         this.agentName = agentName;
-        LogPrintWriter tempOut = new LogPrintWriter(System.out);
+        boolean autoFlush = bufferSize == 0;
+        LogPrintWriter tempOut = new LogPrintWriter(System.out, autoFlush);
         if (logFile != null && !logFile.isEmpty()) {
             try {
-                tempOut = new LogPrintWriter(new FileOutputStream(logFile));
+                tempOut = new LogPrintWriter(new FileOutputStream(logFile), autoFlush);
             } catch (FileNotFoundException | SecurityException e) {
                 tempOut.println("Failed to log to file: " + e);
                 e.printStackTrace(tempOut);
+                tempOut.flush();
             }
         }
         out = tempOut;
+        asyncWriter = bufferSize > 0 ? new AsyncWriter(bufferSize, overflowPolicy) : null;
     }
 
     public Level getLogLevel() {
         return logLevel;
     }
 
+    /**
+     * Returns number of messages which are dropped because the buffer of asynchronous logger is full,
+     * including messages which are skipped by {@link OverflowPolicy#SAMPLE SAMPLE} policy.
+     */
+    public long getDroppedMessageCount() {
+        return asyncWriter != null ? asyncWriter.getDroppedCount() : 0;
+    }
+
+    /**
+     * Returns number of times logging threads waited for free space in the buffer of asynchronous logger.
+     */
+    public long getBlockedMessageCount() {
+        return asyncWriter != null ? asyncWriter.getBlockedCount() : 0;
+    }
+
+    // Writes remaining messages of asynchronous logger, subsequent messages are written synchronously
+    void close() {
+        if (asyncWriter != null)
+            asyncWriter.close();
+    }
+
+    // Writes assembled message and returns the buffer to the pool
+    private void print(Level level, LogBuffer buf, Throwable t) {
+        long time = System.currentTimeMillis();
+        if (asyncWriter == null || !asyncWriter.add(level, time, buf, t)) {
+            out.println(time, buf, buf.getChars(), buf.length());
+            if (t != null)
+                t.printStackTrace(out);
+            if (asyncWriter != null)
+                out.flush(); // output of asynchronous logger is not flushed automatically
+        }
+        buf.release();
+    }
+
     public void log(Level level, Object msg) {
         if (level.priority >= logLevel.priority)
-            out.println(msg);
+            print(level, LogBuffer.acquire().append(msg), null);
     }
 
     public void log(Level level, Object msg1, Object msg2) {
         if (level.priority >= logLevel.priority)
-            out.println("" + msg1 + msg2);
+            print(level, LogBuffer.acquire().append(msg1).append(msg2), null);
     }
 
     public void log(Level level, Object msg1, Object msg2, Object msg3) {
         if (level.priority >= logLevel.priority)
-            out.println("" + msg1 + msg2 + msg3);
+            print(level, LogBuffer.acquire().append(msg1).append(msg2).append(msg3), null);
     }
 
     public void log(Level level, Object msg1, Object msg2, Object msg3, Object msg4) {
         if (level.priority >= logLevel.priority)
-            out.println("" + msg1 + msg2 + msg3 + msg4);
+            print(level, LogBuffer.acquire().append(msg1).append(msg2).append(msg3).append(msg4), null);
     }
 
     public void log(Level level, Object msg1, Object msg2, Object msg3, Object msg4, Object msg5) {
         if (level.priority >= logLevel.priority)
-            out.println("" + msg1 + msg2 + msg3 + msg4 + msg5);
+            print(level, LogBuffer.acquire().append(msg1).append(msg2).append(msg3).append(msg4).append(msg5), null);
     }
 
     public void log(Level level, Object msg1, Object msg2, Object msg3, Object msg4, Object msg5, Object msg6) {
         if (level.priority >= logLevel.priority)
-            out.println("" + msg1 + msg2 + msg3 + msg4 + msg5 + msg6);
+            print(level, LogBuffer.acquire().append(msg1).append(msg2).append(msg3).append(msg4).append(msg5).append(msg6), null);
     }
 
     public void log(Level level, Object msg1, Object msg2, Object msg3, Object msg4, Object msg5, Object msg6, Object msg7) {
         if (level.priority >= logLevel.priority)
-            out.println("" + msg1 + msg2 + msg3 + msg4 + msg5 + msg6 + msg7);
+            print(level, LogBuffer.acquire().append(msg1).append(msg2).append(msg3).append(msg4).append(msg5).append(msg6).append(msg7), null);
     }
 
     public void log(Level level, Object msg1, Object msg2, Object msg3, Object msg4, Object msg5, Object msg6, Object msg7, Object msg8) {
         if (level.priority >= logLevel.priority)
-            out.println("" + msg1 + msg2 + msg3 + msg4 + msg5 + msg6 + msg7 + msg8);
+            print(level, LogBuffer.acquire().append(msg1).append(msg2).append(msg3).append(msg4).append(msg5).append(msg6).append(msg7).append(msg8), null);
     }
 
     public void log(Level level, Object msg1, Object msg2, Object msg3, Object msg4, Object msg5, Object msg6, Object msg7, Object msg8, Object msg9) {
         if (level.priority >= logLevel.priority)
-            out.println("" + msg1 + msg2 + msg3 + msg4 + msg5 + msg6 + msg7 + msg8 + msg9);
+            print(level, LogBuffer.acquire().append(msg1).append(msg2).append(msg3).append(msg4).append(msg5).append(msg6).append(msg7).append(msg8).append(msg9), null);
     }
 
     public void log(Level level, Object... msgs) {
         if (level.priority >= logLevel.priority) {
-            StringBuilder builder = new StringBuilder();
-            for (int i = 0; i < msgs.length; i++) {
-                if (i == msgs.length - 1 && msgs[i] instanceof Throwable) {
-                    Throwable t = (Throwable) msgs[i];
-                    t.printStackTrace();
-                    break;
-                }
-                builder.append(msgs[i]);
-            }
-            debug(builder);
+            int n = msgs.length;
+            // the last throwable is printed with stack trace like in other methods
+            Throwable t = n > 0 && msgs[n - 1] instanceof Throwable ? (Throwable) msgs[--n] : null;
+            LogBuffer buf = LogBuffer.acquire();
+            for (int i = 0; i < n; i++)
+                buf.append(msgs[i]);
+            print(level, buf, t);
         }
     }
 
     public void log(Level level, Object msg, Throwable t) {
-        if (level.priority >= logLevel.priority) {
-            out.println(msg);
-            t.printStackTrace(out);
-        }
+        if (level.priority >= logLevel.priority)
+            print(level, LogBuffer.acquire().append(msg), t);
     }
 
     public void log(Level level, Object msg1, Object msg2, Throwable t) {
-        if (level.priority >= logLevel.priority) {
-            out.println("" + msg1 + msg2);
-            t.printStackTrace(out);
-        }
+        if (level.priority >= logLevel.priority)
+            print(level, LogBuffer.acquire().append(msg1).append(msg2), t);
     }
 
     public void log(Level level, Object msg1, Object msg2, Object msg3, Throwable t) {
-        if (level.priority >= logLevel.priority) {
-            out.println("" + msg1 + msg2 + msg3);
-            t.printStackTrace(out);
-        }
+        if (level.priority >= logLevel.priority)
+            print(level, LogBuffer.acquire().append(msg1).append(msg2).append(msg3), t);
     }
 
     public void log(Level level, Object msg1, Object msg2, Object msg3, Object msg4, Throwable t) {
-        if (level.priority >= logLevel.priority) {
-            out.println("" + msg1 + msg2 + msg3 + msg4);
-            t.printStackTrace(out);
-        }
+        if (level.priority >= logLevel.priority)
+            print(level, LogBuffer.acquire().append(msg1).append(msg2).append(msg3).append(msg4), t);
     }
 
     public void log(Level level, Object msg1, Object msg2, Object msg3, Object msg4, Object msg5, Throwable t) {
-        if (level.priority >= logLevel.priority) {
-            out.println("" + msg1 + msg2 + msg3 + msg4 + msg5);
-            t.printStackTrace(out);
-        }
+        if (level.priority >= logLevel.priority)
+            print(level, LogBuffer.acquire().append(msg1).append(msg2).append(msg3).append(msg4).append(msg5), t);
     }
 
     public void log(Level level, Object msg1, Object msg2, Object msg3, Object msg4, Object msg5, Object msg6, Throwable t) {
-        if (level.priority >= logLevel.priority) {
-            out.println("" + msg1 + msg2 + msg3 + msg4 + msg5 + msg6);
-            t.printStackTrace(out);
-        }
+        if (level.priority >= logLevel.priority)
+            print(level, LogBuffer.acquire().append(msg1).append(msg2).append(msg3).append(msg4).append(msg5).append(msg6), t);
     }
 
     public void log(Level level, Object msg1, Object msg2, Object msg3, Object msg4, Object msg5, Object msg6, Object msg7, Throwable t) {
-        if (level.priority >= logLevel.priority) {
-            out.println("" + msg1 + msg2 + msg3 + msg4 + msg5 + msg6 + msg7);
-            t.printStackTrace(out);
-        }
+        if (level.priority >= logLevel.priority)
+            print(level, LogBuffer.acquire().append(msg1).append(msg2).append(msg3).append(msg4).append(msg5).append(msg6).append(msg7), t);
     }
 
     public void log(Level level, Object msg1, Object msg2, Object msg3, Object msg4, Object msg5, Object msg6, Object msg7, Object msg8, Throwable t) {
-        if (level.priority >= logLevel.priority) {
-            out.println("" + msg1 + msg2 + msg3 + msg4 + msg5 + msg6 + msg7 + msg8);
-            t.printStackTrace(out);
-        }
+        if (level.priority >= logLevel.priority)
+            print(level, LogBuffer.acquire().append(msg1).append(msg2).append(msg3).append(msg4).append(msg5).append(msg6).append(msg7).append(msg8), t);
     }
 
     public void log(Level level, Object msg1, Object msg2, Object msg3, Object msg4, Object msg5, Object msg6, Object msg7, Object msg8, Object msg9, Throwable t) {
-        if (level.priority >= logLevel.priority) {
-            out.println("" + msg1 + msg2 + msg3 + msg4 + msg5 + msg6 + msg7 + msg8 + msg9);
-            t.printStackTrace(out);
-        }
+        if (level.priority >= logLevel.priority)
+            print(level, LogBuffer.acquire().append(msg1).append(msg2).append(msg3).append(msg4).append(msg5).append(msg6).append(msg7).append(msg8).append(msg9), t);
     }
 
     public void debug(Object msg) {
@@ -427,46 +477,234 @@ public class Log {
         }
     }
 
-    private class LogPrintWriter extends PrintWriter {
+    /**
+     * Defines what asynchronous logger does with messages when its buffer is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * New messages are dropped.
+         */
+        DROP,
+        /**
+         * Logging threads wait until there is free space in the buffer.
+         */
+        BLOCK,
+        /**
+         * Only every 10th DEBUG or INFO message is kept when the buffer is more than half full,
+         * new messages are dropped when the buffer is full.
+         */
+        SAMPLE
+    }
 
-        private final OutputStream out;
+    /**
+     * Ring buffer of messages which are written by a single background thread.
+     */
+    private class AsyncWriter implements Runnable {
+        private final OverflowPolicy overflowPolicy;
+        private final int capacity;
+        private final long[] times;
+        // characters of messages, arrays are reused and grow when needed, large ones are released after writing
+        private final char[][] messages;
+        private final int[] lengths;
+        private final Throwable[] throwables;
+        // used by the background thread only
+        private final LogBuffer lineBuffer = new LogBuffer();
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final Condition notFull = lock.newCondition();
+        private final Thread thread;
+        // all fields below are guarded by lock, messages from head (inclusive) to tail (exclusive) are not written yet
+        private long head;
+        private long tail;
+        private long sampled;
+        private long dropped;
+        private long reportedDropped;
+        private long blocked;
+        private boolean closed;
+
+        AsyncWriter(int capacity, OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            this.capacity = capacity;
+            times = new long[capacity];
+            messages = new char[capacity][];
+            lengths = new int[capacity];
+            throwables = new Throwable[capacity];
+            thread = new Thread(this, agentName + "-Log");
+            thread.setDaemon(true);
+            thread.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    close();
+                }
+            }, agentName + "-LogFlusher"));
+        }
 
-        public LogPrintWriter(OutputStream out) {
-            super(new FastOutputStreamWriter(out), true);
-            this.out = out;
+        /**
+         * Copies message to the buffer.
+         *
+         * @return {@code false} if the logger is closed and the message should be written synchronously.
+         */
+        boolean add(Level level, long time, LogBuffer buf, Throwable t) {
+            lock.lock();
+            try {
+                while (tail - head == capacity) {
+                    if (closed)
+                        return false;
+                    if (overflowPolicy != OverflowPolicy.BLOCK || Thread.currentThread() == thread) {
+                        dropped++;
+                        return true;
+                    }
+                    blocked++;
+                    notFull.awaitUninterruptibly();
+                }
+                if (closed)
+                    return false;
+                if (overflowPolicy == OverflowPolicy.SAMPLE && level.priority < Level.WARN.priority &&
+                    tail - head >= capacity / 2 && sampled++ % SAMPLE_RATE != 0)
+                {
+                    dropped++;
+                    return true;
+                }
+                int i = (int) (tail % capacity);
+                times[i] = time;
+                if (messages[i] == null || messages[i].length < buf.length())
+                    messages[i] = new char[Math.max(buf.length(), 64)];
+                System.arraycopy(buf.getChars(), 0, messages[i], 0, buf.length());
+                lengths[i] = buf.length();
+                throwables[i] = t;
+                if (tail++ == head)
+                    notEmpty.signal();
+                return true;
+            } finally {
+                lock.unlock();
+            }
         }
 
-        @Override
-        public void println(Object x) {
-            if (x instanceof CharSequence)
-                println((CharSequence) x);
-            else
-                println(String.valueOf(x));
+        long getDroppedCount() {
+            lock.lock();
+            try {
+                return dropped;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long getBlockedCount() {
+            lock.lock();
+            try {
+                return blocked;
+            } finally {
+                lock.unlock();
+            }
         }
 
         @Override
-        public void println(String x) {
-            synchronized (out) {
-                printHeader();
-                super.println(x);
+        public void run() {
+            while (true) {
+                long from;
+                long to;
+                long newDropped;
+                lock.lock();
+                try {
+                    while (head == tail && !closed)
+                        notEmpty.awaitUninterruptibly();
+                    if (head == tail && dropped == reportedDropped)
+                        break; // closed and all messages are written
+                    from = head;
+                    to = tail;
+                    newDropped = dropped - reportedDropped;
+                    reportedDropped = dropped;
+                } finally {
+                    lock.unlock();
+                }
+                // messages in [from, to) are not modified by other threads until head is moved
+                for (long seq = from; seq < to; seq++) {
+                    int i = (int) (seq % capacity);
+                    out.println(times[i], lineBuffer, messages[i], lengths[i]);
+                    if (throwables[i] != null)
+                        throwables[i].printStackTrace(out);
+                    throwables[i] = null;
+                    if (messages[i].length > LogBuffer.MAX_POOLED_CAPACITY)
+                        messages[i] = null;
+                }
+                if (newDropped > 0)
+                    out.println(newDropped + " log messages are dropped since the log buffer is full");
+                out.flush();
+                lock.lock();
+                try {
+                    head = to;
+                    notFull.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        // Writes remaining messages, subsequent messages are written synchronously
+        void close() {
+            lock.lock();
+            try {
+                closed = true;
+                notEmpty.signal();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                thread.join(SHUTDOWN_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+            out.flush();
+        }
+    }
+
+    private class LogPrintWriter extends PrintWriter {
+
+        private final OutputStream out;
+        private final FastOutputStreamWriter writer;
+        private final boolean autoFlush;
+
+        public LogPrintWriter(OutputStream out, boolean autoFlush) {
+            this(out, new FastOutputStreamWriter(out), autoFlush);
+        }
+
+        private LogPrintWriter(OutputStream out, FastOutputStreamWriter writer, boolean autoFlush) {
+            super(writer, autoFlush);
+            this.out = out;
+            this.writer = writer;
+            this.autoFlush = autoFlush;
         }
 
-        private void println(CharSequence cs) {
+        /**
+         * Writes line with header, the line is encoded by specified buffer and written at once.
+         */
+        public void println(long time, LogBuffer buf, char[] msg, int msgLength) {
+            buf.encodeLine(time, agentName, msg, msgLength);
             synchronized (out) {
-                printHeader();
-                for (int i = 0; i < cs.length(); i++)
-                    super.print(cs.charAt(i));
-                super.println();
+                try {
+                    writer.writeBytes(buf.getBytes(), 0, buf.getByteLength());
+                    if (autoFlush)
+                        writer.flush();
+                } catch (IOException e) {
+                    setError();
+                }
             }
         }
 
-        private void printHeader() {
-            FastFmtUtil.printTimeAndDate(this, System.currentTimeMillis());
-            print(' ');
-            print(agentName);
-            print(':');
-            print(' ');
+        @Override
+        public void println(Object x) {
+            println(String.valueOf(x));
+        }
+
+        @Override
+        public void println(String x) {
+            LogBuffer buf = LogBuffer.acquire();
+            buf.append(x);
+            println(System.currentTimeMillis(), buf, buf.getChars(), buf.length());
+            buf.release();
         }
     }
 }
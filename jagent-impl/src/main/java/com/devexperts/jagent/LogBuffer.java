@@ -0,0 +1,220 @@
+package com.devexperts.jagent;
+
+/*
+ * #%L
+ * JAgent Impl
+ * %%
+ * Copyright (C) 2015 - 2016 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Reusable buffer which log messages are assembled and encoded in without allocation.
+ * Buffers are taken from a shared pool rather than from thread locals, so virtual threads reuse them too.
+ */
+class LogBuffer {
+    private static final int POOL_SIZE = 32; // power of 2
+    private static final int INITIAL_CAPACITY = 256;
+    // larger buffers are not returned to the pool, so rare long messages do not retain memory
+    static final int MAX_POOLED_CAPACITY = 64 * 1024;
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private static final AtomicReferenceArray<LogBuffer> POOL = new AtomicReferenceArray<>(POOL_SIZE);
+
+    private final FastFmtUtil.TimeAndDateFormatter timeFmt = new FastFmtUtil.TimeAndDateFormatter();
+    private char[] chars = new char[INITIAL_CAPACITY];
+    private int length;
+    private byte[] bytes = new byte[INITIAL_CAPACITY];
+    private int byteLength;
+
+    /**
+     * Returns empty buffer from the pool or a new one if the pool is empty.
+     */
+    static LogBuffer acquire() {
+        int start = (int) Thread.currentThread().getId();
+        for (int i = 0; i < POOL_SIZE; i++) {
+            LogBuffer buf = POOL.getAndSet((start + i) & (POOL_SIZE - 1), null);
+            if (buf != null) {
+                buf.length = 0;
+                return buf;
+            }
+        }
+        return new LogBuffer();
+    }
+
+    /**
+     * Returns this buffer to the pool, it should not be used after that.
+     */
+    void release() {
+        if (chars.length > MAX_POOLED_CAPACITY || bytes.length > MAX_POOLED_CAPACITY)
+            return;
+        int start = (int) Thread.currentThread().getId();
+        for (int i = 0; i < POOL_SIZE; i++) {
+            if (POOL.compareAndSet((start + i) & (POOL_SIZE - 1), null, this))
+                return;
+        }
+    }
+
+    char[] getChars() {
+        return chars;
+    }
+
+    int length() {
+        return length;
+    }
+
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    int getByteLength() {
+        return byteLength;
+    }
+
+    /**
+     * Appends string representation of specified object. Strings, other char sequences, boxed primitives
+     * and classes are appended without allocation, {@link Object#toString()} is used for other objects.
+     */
+    LogBuffer append(Object obj) {
+        if (obj == null || obj instanceof String)
+            return append((String) obj);
+        if (obj instanceof CharSequence)
+            return append((CharSequence) obj);
+        if (obj instanceof Integer || obj instanceof Long || obj instanceof Short || obj instanceof Byte)
+            return append(((Number) obj).longValue());
+        if (obj instanceof Character)
+            return append(((Character) obj).charValue());
+        if (obj instanceof Boolean)
+            return append(((Boolean) obj) ? "true" : "false");
+        if (obj instanceof Class) {
+            Class<?> c = (Class<?>) obj;
+            // the same as Class.toString(), the name is cached by Class
+            return append(c.isInterface() ? "interface " : c.isPrimitive() ? "" : "class ").append(c.getName());
+        }
+        return append(String.valueOf(obj));
+    }
+
+    LogBuffer append(String s) {
+        if (s == null)
+            s = "null";
+        ensureCapacity(length + s.length());
+        s.getChars(0, s.length(), chars, length);
+        length += s.length();
+        return this;
+    }
+
+    LogBuffer append(CharSequence cs) {
+        int n = cs.length();
+        ensureCapacity(length + n);
+        for (int i = 0; i < n; i++)
+            chars[length++] = cs.charAt(i);
+        return this;
+    }
+
+    LogBuffer append(char c) {
+        ensureCapacity(length + 1);
+        chars[length++] = c;
+        return this;
+    }
+
+    LogBuffer append(long value) {
+        if (value == Long.MIN_VALUE)
+            return append("-9223372036854775808");
+        if (value < 0) {
+            append('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long x = value; x >= 10; x /= 10)
+            digits++;
+        ensureCapacity(length + digits);
+        for (int i = length + digits - 1; i >= length; i--) {
+            chars[i] = (char) (value % 10 + '0');
+            value /= 10;
+        }
+        length += digits;
+        return this;
+    }
+
+    /**
+     * Encodes log line with header into bytes, see {@link #getBytes()} and {@link #getByteLength()}.
+     * Characters out of ASCII are written as unicode escapes like {@link FastOutputStreamWriter} does.
+     *
+     * @param time      time of the message.
+     * @param agentName agent name to be used in header.
+     * @param msg       characters of the message, either of this buffer or of another one.
+     * @param msgLength number of characters in the message.
+     */
+    void encodeLine(long time, String agentName, char[] msg, int msgLength) {
+        byteLength = 0;
+        timeFmt.update(time);
+        encode(timeFmt.lastDay);
+        encode('T');
+        encode(timeFmt.lastHour);
+        encode(':');
+        encode2((int) (time / 60000 % 60));
+        encode(':');
+        encode2((int) (time / 1000 % 60));
+        encode('.');
+        int millis = (int) (time % 1000);
+        encode((char) (millis / 100 + '0'));
+        encode2(millis);
+        encode(timeFmt.lastZone);
+        encode(' ');
+        encode(agentName);
+        encode(':');
+        encode(' ');
+        for (int i = 0; i < msgLength; i++)
+            encode(msg[i]);
+        encode(LINE_SEPARATOR);
+    }
+
+    private void encode2(int value) {
+        encode((char) (value / 10 % 10 + '0'));
+        encode((char) (value % 10 + '0'));
+    }
+
+    private void encode(String s) {
+        if (s == null)
+            s = "null";
+        for (int i = 0; i < s.length(); i++)
+            encode(s.charAt(i));
+    }
+
+    private void encode(char c) {
+        if (byteLength + 6 > bytes.length)
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, byteLength + 6));
+        if (c <= 0x7f) {
+            bytes[byteLength++] = (byte) c;
+        } else {
+            bytes[byteLength++] = '\\';
+            bytes[byteLength++] = 'u';
+            bytes[byteLength++] = (byte) FastOutputStreamWriter.HEX[(c >> 12) & 0xf];
+            bytes[byteLength++] = (byte) FastOutputStreamWriter.HEX[(c >> 8) & 0xf];
+            bytes[byteLength++] = (byte) FastOutputStreamWriter.HEX[(c >> 4) & 0xf];
+            bytes[byteLength++] = (byte) FastOutputStreamWriter.HEX[c & 0xf];
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > chars.length)
+            chars = Arrays.copyOf(chars, Math.max(chars.length * 2, capacity));
+    }
+}
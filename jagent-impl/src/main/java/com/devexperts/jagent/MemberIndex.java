@@ -0,0 +1,283 @@
+package com.devexperts.jagent;
+
+/*
+ * #%L
+ * JAgent Impl
+ * %%
+ * Copyright (C) 2015 - 2016 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact index of methods and fields declared by a single class.
+ *
+ * <p>Names and descriptors are {@link String#intern() interned} and referenced by ids,
+ * every member takes three ints and lookup by name is done via open addressing hash table.
+ * Descriptors of member annotations are stored only if they were requested
+ * via {@link ClassInfoVisitor#INDEX_MEMBER_ANNOTATIONS}.
+ */
+public class MemberIndex {
+    private static final int FIELD_FLAG = 1 << 16;
+    private static final int ACCESS_MASK = 0xffff;
+
+    // id -> interned name or descriptor
+    private final String[] strings;
+    // member -> (nameId, descId, access | FIELD_FLAG)
+    private final int[] members;
+    // hash of name -> member + 1, 0 stands for empty slot
+    private final int[] table;
+    // member -> start of its annotations in annotationIds, null if annotations are not indexed
+    private final int[] annotationOffsets;
+    // annotation descriptor ids of all members
+    private final int[] annotationIds;
+
+    private MemberIndex(String[] strings, int[] members, int[] annotationOffsets, int[] annotationIds) {
+        this.strings = strings;
+        this.members = members;
+        this.annotationOffsets = annotationOffsets;
+        this.annotationIds = annotationIds;
+        int n = members.length / 3;
+        int capacity = Integer.highestOneBit(Math.max(n, 1) * 2 + 1) << 1;
+        table = new int[capacity];
+        for (int m = 0; m < n; m++) {
+            int i = strings[members[m * 3]].hashCode() & (capacity - 1);
+            while (table[i] != 0)
+                i = (i + 1) & (capacity - 1);
+            table[i] = m + 1;
+        }
+    }
+
+    public int getMemberCount() {
+        return members.length / 3;
+    }
+
+    /**
+     * Returns access flags of declared method or {@code -1} if it is not declared.
+     *
+     * @param name method name.
+     * @param desc method descriptor, pass {@code null} to match any descriptor.
+     */
+    public int getMethodAccess(String name, String desc) {
+        return getAccess(name, desc, 0);
+    }
+
+    /**
+     * Returns access flags of declared method which has none of {@code excludedAccess} flags
+     * and at least one of {@code anyOfAccess} flags, or {@code -1} if there is no such method.
+     * All overloads are checked if descriptor is {@code null}.
+     *
+     * @param name           method name.
+     * @param desc           method descriptor, pass {@code null} to match any descriptor.
+     * @param excludedAccess access flags which the method should not have.
+     * @param anyOfAccess    access flags which the method should have at least one of, pass {@code 0} to skip the check.
+     */
+    public int getMethodAccess(String name, String desc, int excludedAccess, int anyOfAccess) {
+        int m = findMember(name, desc, false, excludedAccess, anyOfAccess);
+        return m < 0 ? -1 : members[m * 3 + 2] & ACCESS_MASK;
+    }
+
+    /**
+     * Returns access flags of declared field or {@code -1} if it is not declared.
+     *
+     * @param name field name.
+     * @param desc field descriptor, pass {@code null} to match any descriptor.
+     */
+    public int getFieldAccess(String name, String desc) {
+        return getAccess(name, desc, FIELD_FLAG);
+    }
+
+    public boolean hasMethod(String name, String desc) {
+        return getMethodAccess(name, desc) >= 0;
+    }
+
+    public boolean hasField(String name, String desc) {
+        return getFieldAccess(name, desc) >= 0;
+    }
+
+    /**
+     * Returns {@code true} if descriptors of member annotations are stored in this index.
+     */
+    public boolean hasAnnotations() {
+        return annotationOffsets != null;
+    }
+
+    /**
+     * Returns {@code true} if declared method is annotated with specified annotation.
+     *
+     * @param desc           method descriptor, pass {@code null} to match any descriptor.
+     * @param annotationDesc annotation type descriptor, e.g. {@code "Ljavax/annotation/PostConstruct;"}.
+     * @throws IllegalStateException if annotations are not indexed.
+     */
+    public boolean hasMethodAnnotation(String name, String desc, String annotationDesc) {
+        return hasAnnotation(name, desc, false, 0, annotationDesc);
+    }
+
+    // Same as hasMethodAnnotation, but skips methods which have any of excludedAccess flags
+    boolean hasMethodAnnotation(String name, String desc, String annotationDesc, int excludedAccess) {
+        return hasAnnotation(name, desc, false, excludedAccess, annotationDesc);
+    }
+
+    /**
+     * Returns {@code true} if declared field is annotated with specified annotation.
+     *
+     * @param desc           field descriptor, pass {@code null} to match any descriptor.
+     * @param annotationDesc annotation type descriptor.
+     * @throws IllegalStateException if annotations are not indexed.
+     */
+    public boolean hasFieldAnnotation(String name, String desc, String annotationDesc) {
+        return hasAnnotation(name, desc, true, 0, annotationDesc);
+    }
+
+    // Checks all members which match name and descriptor (if not null), so any overload may be annotated
+    private boolean hasAnnotation(String name, String desc, boolean field, int excludedAccess, String annotationDesc) {
+        if (annotationOffsets == null)
+            throw new IllegalStateException("Member annotations are not indexed");
+        int mask = table.length - 1;
+        for (int i = name.hashCode() & mask; table[i] != 0; i = (i + 1) & mask) {
+            int m = table[i] - 1;
+            if (matches(m, name, desc, field, excludedAccess, 0) && hasAnnotation(m, annotationDesc))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean hasAnnotation(int m, String annotationDesc) {
+        for (int i = annotationOffsets[m]; i < annotationOffsets[m + 1]; i++) {
+            if (strings[annotationIds[i]].equals(annotationDesc))
+                return true;
+        }
+        return false;
+    }
+
+    int findMember(String name, String desc, boolean field) {
+        return findMember(name, desc, field, 0, 0);
+    }
+
+    // Returns the first member which matches name, descriptor (if not null) and access flags, or -1
+    int findMember(String name, String desc, boolean field, int excludedAccess, int anyOfAccess) {
+        int mask = table.length - 1;
+        for (int i = name.hashCode() & mask; table[i] != 0; i = (i + 1) & mask) {
+            int m = table[i] - 1;
+            if (matches(m, name, desc, field, excludedAccess, anyOfAccess))
+                return m;
+        }
+        return -1;
+    }
+
+    private boolean matches(int m, String name, String desc, boolean field, int excludedAccess, int anyOfAccess) {
+        int flags = members[m * 3 + 2];
+        return (flags & FIELD_FLAG) == (field ? FIELD_FLAG : 0)
+                && (flags & excludedAccess) == 0
+                && (anyOfAccess == 0 || (flags & anyOfAccess) != 0)
+                && strings[members[m * 3]].equals(name)
+                && (desc == null || strings[members[m * 3 + 1]].equals(desc));
+    }
+
+    private int getAccess(String name, String desc, int kind) {
+        int m = findMember(name, desc, kind != 0);
+        return m < 0 ? -1 : members[m * 3 + 2] & ACCESS_MASK;
+    }
+
+    static class Builder {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+        private int[] members = new int[24];
+        private int size;
+        // member -> number of its annotations, null if annotations are not indexed
+        private int[] annotationCounts;
+        private int[] annotationIds;
+        private int annotationSize;
+
+        Builder() {
+        }
+
+        Builder(boolean indexAnnotations) {
+            if (indexAnnotations) {
+                annotationCounts = new int[8];
+                annotationIds = new int[8];
+            }
+        }
+
+        Builder addMethod(int access, String name, String desc) {
+            return add(access & ACCESS_MASK, name, desc);
+        }
+
+        Builder addField(int access, String name, String desc) {
+            return add((access & ACCESS_MASK) | FIELD_FLAG, name, desc);
+        }
+
+        private Builder add(int flags, String name, String desc) {
+            if (size + 3 > members.length)
+                members = grow(members, size);
+            members[size++] = id(name);
+            members[size++] = id(desc);
+            members[size++] = flags;
+            if (annotationCounts != null && size / 3 > annotationCounts.length)
+                annotationCounts = grow(annotationCounts, annotationCounts.length);
+            return this;
+        }
+
+        /**
+         * Adds annotation to the last added member. Ignored if annotations are not indexed.
+         */
+        Builder addAnnotation(String annotationDesc) {
+            if (annotationCounts == null || size == 0)
+                return this;
+            if (annotationSize == annotationIds.length)
+                annotationIds = grow(annotationIds, annotationSize);
+            annotationIds[annotationSize++] = id(annotationDesc);
+            annotationCounts[size / 3 - 1]++;
+            return this;
+        }
+
+        private static int[] grow(int[] a, int size) {
+            int[] newA = new int[a.length * 2];
+            System.arraycopy(a, 0, newA, 0, size);
+            return newA;
+        }
+
+        private int id(String s) {
+            Integer id = ids.get(s);
+            if (id == null) {
+                ids.put(s, id = strings.size());
+                strings.add(s.intern());
+            }
+            return id;
+        }
+
+        MemberIndex build() {
+            int[] compact = new int[size];
+            System.arraycopy(members, 0, compact, 0, size);
+            int[] offsets = null;
+            int[] compactIds = null;
+            if (annotationCounts != null) {
+                int n = size / 3;
+                offsets = new int[n + 1];
+                for (int m = 0; m < n; m++)
+                    offsets[m + 1] = offsets[m] + annotationCounts[m];
+                compactIds = new int[annotationSize];
+                System.arraycopy(annotationIds, 0, compactIds, 0, annotationSize);
+            }
+            return new MemberIndex(strings.toArray(new String[strings.size()]), compact, offsets, compactIds);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.devexperts.jagent;
+
+/*
+ * #%L
+ * JAgent Impl
+ * %%
+ * Copyright (C) 2015 - 2016 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.lang.instrument.ClassDefinition;
+import java.lang.instrument.Instrumentation;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Keeps original bytes of classes which were changed by agent's transformers, so they can be restored
+ * when the agent is stopped. Bytes are kept deflated, class loaders are referenced weakly.
+ *
+ * <p>When classes are restored via retransformation, the JVM keeps original bytes itself
+ * and only names of changed classes are stored.
+ */
+class OriginalClassStore {
+    private final boolean keepBytes;
+
+    // ClassLoader -> internal class name -> deflated bytes (or null), null key stands for bootstrap class loader
+    private final WeakHashMap<ClassLoader, Map<String, byte[]>> classes = new WeakHashMap<>();
+
+    OriginalClassStore(boolean keepBytes) {
+        this.keepBytes = keepBytes;
+    }
+
+    /**
+     * Remembers original bytes of the class, the first remembered bytes are kept.
+     */
+    void put(ClassLoader loader, String internalClassName, byte[] bytes) {
+        synchronized (this) {
+            Map<String, byte[]> map = classes.get(loader);
+            if (map != null && map.containsKey(internalClassName))
+                return;
+        }
+        byte[] deflated = keepBytes ? deflate(bytes) : null;
+        synchronized (this) {
+            Map<String, byte[]> map = classes.get(loader);
+            if (map == null)
+                classes.put(loader, map = new HashMap<>());
+            if (!map.containsKey(internalClassName))
+                map.put(internalClassName, deflated);
+        }
+    }
+
+    synchronized int size() {
+        int size = 0;
+        for (Map<String, byte[]> map : classes.values())
+            size += map.size();
+        return size;
+    }
+
+    /**
+     * Returns loaded classes which were changed and clears the store.
+     */
+    List<Class> drainClasses(Instrumentation inst) {
+        List<Class> result = new ArrayList<>();
+        for (Map.Entry<ClassLoader, Map<String, byte[]>> e : drain().entrySet())
+            LoadedClassRegistry.findLoadedClasses(inst, e.getKey(), getClassNames(e.getValue()), result);
+        return result;
+    }
+
+    /**
+     * Returns definitions of loaded classes with original bytes and clears the store.
+     */
+    List<ClassDefinition> drainDefinitions(Instrumentation inst) {
+        List<ClassDefinition> result = new ArrayList<>();
+        List<Class> classes = new ArrayList<>();
+        for (Map.Entry<ClassLoader, Map<String, byte[]>> e : drain().entrySet()) {
+            classes.clear();
+            LoadedClassRegistry.findLoadedClasses(inst, e.getKey(), getClassNames(e.getValue()), classes);
+            for (Class clazz : classes) {
+                byte[] deflated = e.getValue().get(clazz.getName().replace('.', '/'));
+                if (deflated != null)
+                    result.add(new ClassDefinition(clazz, inflate(deflated)));
+            }
+        }
+        return result;
+    }
+
+    private synchronized Map<ClassLoader, Map<String, byte[]>> drain() {
+        Map<ClassLoader, Map<String, byte[]>> result = new HashMap<>(classes);
+        classes.clear();
+        return result;
+    }
+
+    private static Set<String> getClassNames(Map<String, byte[]> map) {
+        Set<String> names = new HashSet<>(map.size() * 2);
+        for (String internalClassName : map.keySet())
+            names.add(internalClassName.replace('/', '.'));
+        return names;
+    }
+
+    private static byte[] deflate(byte[] bytes) {
+        int length = bytes.length;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 16);
+            byte[] buf = new byte[4096];
+            while (!deflater.finished())
+                out.write(buf, 0, deflater.deflate(buf));
+            // keep uncompressed length in the first 4 bytes to inflate at once
+            byte[] deflated = out.toByteArray();
+            byte[] result = new byte[deflated.length + 4];
+            result[0] = (byte) (length >>> 24);
+            result[1] = (byte) (length >>> 16);
+            result[2] = (byte) (length >>> 8);
+            result[3] = (byte) length;
+            System.arraycopy(deflated, 0, result, 4, deflated.length);
+            return result;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] deflated) {
+        int length = ((deflated[0] & 0xff) << 24) | ((deflated[1] & 0xff) << 16) |
+            ((deflated[2] & 0xff) << 8) | (deflated[3] & 0xff);
+        // nowrap inflater requires an extra dummy byte at the end of input
+        byte[] input = Arrays.copyOfRange(deflated, 4, deflated.length + 1);
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(input);
+            byte[] result = new byte[length];
+            int n = 0;
+            while (n < length) {
+                int r = inflater.inflate(result, n, length - n);
+                if (r == 0 && (inflater.finished() || inflater.needsInput()))
+                    break;
+                n += r;
+            }
+            if (n != length)
+                throw new DataFormatException("Unexpected length " + n + " instead of " + length);
+            return result;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupted original class bytes", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.devexperts.jagent;
+
+/*
+ * #%L
+ * JAgent Impl
+ * %%
+ * Copyright (C) 2015 - 2016 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that {@link ClassFileLocator} keeps parent-first delegation of class loaders and finds class files
+ * which are added later.
+ */
+public class ClassFileLocatorTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final ClassFileLocator locator = new ClassFileLocator();
+
+    @Test
+    public void testParentIsAskedFirst() throws IOException {
+        File parentDir = createDir("p/B.class", "parent-B");
+        File childDir = createDir("p/A.class", "child-A", "p/B.class", "child-B");
+        URLClassLoader parent = new URLClassLoader(new URL[] {parentDir.toURI().toURL()}, null);
+        URLClassLoader child = new URLClassLoader(new URL[] {childDir.toURI().toURL()}, parent);
+        assertEquals("child-A", read("p/A", child));
+        assertEquals("parent-B", read("p/B", child));
+        assertEquals("child-A", read("p/A", child));
+        assertNull(locator.open("p/C", child));
+    }
+
+    @Test
+    public void testSplitPackage() throws IOException {
+        File dir1 = createDir("p/A.class", "A");
+        File dir2 = createDir("p/C.class", "C");
+        URLClassLoader loader = new URLClassLoader(new URL[] {dir1.toURI().toURL(), dir2.toURI().toURL()}, null);
+        for (int i = 0; i < 2; i++) {
+            assertEquals("A", read("p/A", loader));
+            assertEquals("C", read("p/C", loader));
+        }
+    }
+
+    @Test
+    public void testParentMissesAreRemembered() throws IOException {
+        final int[] parentLookups = new int[1];
+        URLClassLoader parent = new URLClassLoader(new URL[] {createDir().toURI().toURL()}, null) {
+            @Override
+            public URL getResource(String name) {
+                parentLookups[0]++;
+                return super.getResource(name);
+            }
+        };
+        File childDir = createDir("p/A.class", "A");
+        URLClassLoader child = new URLClassLoader(new URL[] {childDir.toURI().toURL()}, parent);
+        assertEquals("A", read("p/A", child));
+        assertEquals("A", read("p/A", child));
+        int lookups = parentLookups[0];
+        for (int i = 0; i < 3; i++)
+            assertEquals("A", read("p/A", child));
+        assertEquals(lookups, parentLookups[0]);
+    }
+
+    @Test
+    public void testMissesExpire() throws IOException {
+        File dir1 = createDir("p/A.class", "A");
+        File dir2 = createDir("p/B.class", "B");
+        ExtensibleClassLoader loader = new ExtensibleClassLoader(dir1.toURI().toURL());
+        ClassFileLocator expiringLocator = new ClassFileLocator(0);
+        assertNull(expiringLocator.open("p/B", loader));
+        loader.addURL(dir2.toURI().toURL());
+        try (InputStream in = expiringLocator.open("p/B", loader)) {
+            assertNotNull(in);
+        }
+    }
+
+    @Test
+    public void testCustomProtocolCodeSource() throws IOException {
+        final Map<String, String> files = new HashMap<>();
+        files.put("/p/A.class", "A");
+        files.put("/p/B.class", "B");
+        URLStreamHandler handler = new URLStreamHandler() {
+            @Override
+            protected URLConnection openConnection(final URL u) throws IOException {
+                final String content = files.get(u.getPath());
+                if (content == null)
+                    throw new FileNotFoundException(u.toString());
+                return new URLConnection(u) {
+                    @Override
+                    public void connect() {}
+
+                    @Override
+                    public InputStream getInputStream() {
+                        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+                    }
+                };
+            }
+        };
+        final int[] lookups = new int[1];
+        URLClassLoader loader = new URLClassLoader(new URL[] {new URL("mem", "", -1, "/", handler)}, null) {
+            @Override
+            public URL getResource(String name) {
+                lookups[0]++;
+                return super.getResource(name);
+            }
+        };
+        assertEquals("A", read("p/A", loader));
+        int lookupsOfFirstClass = lookups[0];
+        // the second class of the package is opened via its code source directly
+        assertEquals("B", read("p/B", loader));
+        assertEquals(lookupsOfFirstClass, lookups[0]);
+    }
+
+    private static class ExtensibleClassLoader extends URLClassLoader {
+        ExtensibleClassLoader(URL url) {
+            super(new URL[] {url}, null);
+        }
+
+        @Override
+        public void addURL(URL url) {
+            super.addURL(url);
+        }
+    }
+
+    private File createDir(String... namesAndContents) throws IOException {
+        File dir = tmp.newFolder();
+        for (int i = 0; i < namesAndContents.length; i += 2) {
+            File file = new File(dir, namesAndContents[i]);
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), namesAndContents[i + 1].getBytes(StandardCharsets.UTF_8));
+        }
+        return dir;
+    }
+
+    private String read(String internalClassName, ClassLoader loader) throws IOException {
+        try (InputStream in = locator.open(internalClassName, loader)) {
+            assertNotNull(internalClassName, in);
+            byte[] buf = new byte[100];
+            int n = in.read(buf);
+            return new String(buf, 0, n, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.devexperts.jagent;
+
+/*
+ * #%L
+ * JAgent Impl
+ * %%
+ * Copyright (C) 2015 - 2016 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies eviction of bounded {@link ClassInfoMap}.
+ */
+public class ClassInfoMapTest {
+    private static final int MAX_SIZE = 8;
+
+    private final ClassInfo info = buildClassInfo();
+
+    @Test
+    public void testUnboundedMapKeepsAllEntries() {
+        ClassInfoMap map = new ClassInfoMap();
+        for (int i = 0; i < 1000; i++)
+            map.put("C" + i, info);
+        assertEquals(1000, map.size());
+    }
+
+    @Test
+    public void testSizeIsBounded() {
+        ClassInfoMap map = new ClassInfoMap(MAX_SIZE, false);
+        for (int i = 0; i < 1000; i++) {
+            map.put("C" + i, info);
+            assertTrue(map.size() <= MAX_SIZE);
+        }
+        // the latest entry is never evicted right away
+        assertSame(info, map.get("C999"));
+    }
+
+    @Test
+    public void testReferencedEntryGetsSecondChance() {
+        ClassInfoMap map = new ClassInfoMap(MAX_SIZE, false);
+        map.put("Hot", info);
+        for (int i = 0; i < 100; i++) {
+            assertSame(info, map.get("Hot"));
+            map.put("C" + i, info);
+        }
+        assertSame(info, map.get("Hot"));
+        assertNull(map.get("C0"));
+    }
+
+    @Test
+    public void testReplacedEntryIsNotDuplicated() {
+        ClassInfoMap map = new ClassInfoMap(MAX_SIZE, false);
+        for (int i = 0; i < 100; i++)
+            map.put("Same", info);
+        assertEquals(1, map.size());
+        for (int i = 0; i < 100; i++)
+            map.put("C" + i, info);
+        assertEquals(MAX_SIZE, map.size());
+    }
+
+    @Test
+    public void testObjectAndPinnedEntriesAreNotEvicted() {
+        ClassInfoMap map = new ClassInfoMap(MAX_SIZE, true);
+        map.put("java/lang/Object", info);
+        map.putPinned("Generated", info);
+        for (int i = 0; i < 100; i++)
+            map.put("C" + i, info);
+        assertSame(info, map.get("java/lang/Object"));
+        assertSame(info, map.get("Generated"));
+        // pinned entries are not counted in the limit
+        assertEquals(MAX_SIZE + 2, map.size());
+    }
+
+    private static ClassInfo buildClassInfo() {
+        try {
+            ClassInfoVisitor visitor = new ClassInfoVisitor();
+            new ClassReader(ClassInfoMapTest.class.getName()).accept(visitor, ClassReader.SKIP_CODE);
+            return visitor.buildClassInfo();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
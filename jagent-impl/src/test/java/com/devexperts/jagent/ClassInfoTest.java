@@ -0,0 +1,123 @@
+package com.devexperts.jagent;
+
+/*
+ * #%L
+ * JAgent Impl
+ * %%
+ * Copyright (C) 2015 - 2016 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Type;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies annotation queries of {@link ClassInfo}.
+ */
+public class ClassInfoTest {
+    private static final String MARKER = Type.getDescriptor(Marker.class);
+    private static final String OTHER = Type.getDescriptor(Other.class);
+
+    private final ClassInfoCache ciCache = new ClassInfoCache(new Log("test", Log.Level.WARN, null));
+    private final ClassLoader loader = ClassInfoTest.class.getClassLoader();
+
+    @interface Marker {}
+
+    @interface Other {}
+
+    @Marker
+    interface Base {
+        @Marker
+        void run();
+    }
+
+    interface Left extends Base {}
+
+    interface Right extends Base {}
+
+    abstract static class Diamond implements Left, Right {
+        public void run() {}
+    }
+
+    static class Overloads {
+        void call() {}
+
+        @Marker
+        void call(int x) {}
+
+        @Marker
+        private void hidden() {}
+    }
+
+    static class OverloadsChild extends Overloads {
+        @Override
+        void call(int x) {}
+
+        void hidden() {}
+    }
+
+    @Test
+    public void testInheritedAnnotationThroughDiamond() {
+        assertFalse(ciCache.hasAnnotation(internalName(Diamond.class), MARKER, loader, false));
+        assertTrue(ciCache.hasAnnotation(internalName(Diamond.class), MARKER, loader, true));
+        assertFalse(ciCache.hasAnnotation(internalName(Diamond.class), OTHER, loader, true));
+        assertTrue(ciCache.hasMethodAnnotation(internalName(Diamond.class), "run", "()V", MARKER, loader, true));
+        assertFalse(ciCache.hasMethodAnnotation(internalName(Diamond.class), "run", "()V", OTHER, loader, true));
+    }
+
+    @Test
+    public void testAllOverloadsAreChecked() {
+        String overloads = internalName(Overloads.class);
+        assertTrue(ciCache.hasMethodAnnotation(overloads, "call", null, MARKER, loader, false));
+        assertFalse(ciCache.hasMethodAnnotation(overloads, "call", "()V", MARKER, loader, false));
+        String child = internalName(OverloadsChild.class);
+        assertFalse(ciCache.hasMethodAnnotation(child, "call", null, MARKER, loader, false));
+        assertTrue(ciCache.hasMethodAnnotation(child, "call", null, MARKER, loader, true));
+        // private methods are not overridden
+        assertFalse(ciCache.hasMethodAnnotation(child, "hidden", null, MARKER, loader, true));
+    }
+
+    @Test
+    public void testFailedAnnotationIndexKeepsMembers() throws IOException {
+        ClassInfoVisitor visitor = new ClassInfoVisitor(ClassInfoVisitor.INDEX_MEMBERS);
+        new ClassReader(Overloads.class.getName()).accept(visitor, ClassReader.SKIP_CODE);
+        ClassInfo classInfo = visitor.buildClassInfo();
+        final int[] builds = new int[1];
+        ClassInfoCache failingCache = new ClassInfoCache(new Log("test", Log.Level.WARN, null)) {
+            @Override
+            MemberIndex buildMemberIndex(String internalClassName, ClassLoader loader) {
+                builds[0]++;
+                return null;
+            }
+        };
+        for (int i = 0; i < 3; i++) {
+            assertFalse(classInfo.hasMethodAnnotation("call", null, MARKER, false, failingCache, loader));
+            assertNotNull(classInfo.getMemberIndex(failingCache, loader));
+            assertTrue(classInfo.getMemberIndex(failingCache, loader).hasMethod("call", "(I)V"));
+        }
+        assertEquals(1, builds[0]);
+    }
+
+    private static String internalName(Class<?> c) {
+        return Type.getInternalName(c);
+    }
+}
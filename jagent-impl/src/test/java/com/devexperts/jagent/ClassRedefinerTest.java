@@ -0,0 +1,221 @@
+package com.devexperts.jagent;
+
+/*
+ * #%L
+ * JAgent Impl
+ * %%
+ * Copyright (C) 2015 - 2016 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassDefinition;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.ProtectionDomain;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies which classes {@link ClassRedefiner} redefines, the instrumentation is simulated.
+ */
+public class ClassRedefinerTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File logFile;
+    private final FakeInstrumentation fake = new FakeInstrumentation();
+    private final Instrumentation inst = (Instrumentation) Proxy.newProxyInstance(
+        getClass().getClassLoader(), new Class[] {Instrumentation.class}, fake);
+    private ClassRedefiner redefiner;
+    private final List<ClassFileTransformer> transformers =
+        Collections.<ClassFileTransformer>singletonList(new ChangingTransformer());
+
+    @Before
+    public void setUp() throws IOException {
+        logFile = tmp.newFile("test.log");
+        redefiner = new ClassRedefiner(inst, new Log("test", Log.Level.INFO, logFile.getPath()), "test");
+    }
+
+    @Test
+    public void testClassesLoadedDuringSweepAreRedefinedByNextPass() throws Exception {
+        fake.loaded.add(Early.class);
+        fake.loadedOnRedefinition = Late.class;
+        redefiner.redefine(transformers);
+        assertEquals(Arrays.<Class>asList(Early.class, Late.class), fake.redefined);
+    }
+
+    @Test
+    public void testClassesLoadedAfterRegistrationAreNotRedefined() throws Exception {
+        fake.loaded.add(Early.class);
+        fake.loadedOnRedefinition = Late.class;
+        redefiner.startTracking();
+        // loaded while transformers are being registered, so it may be not transformed
+        fake.load(Registered.class);
+        for (ClassFileTransformer transformer : transformers)
+            inst.addTransformer(transformer);
+        redefiner.stopTracking();
+        redefiner.redefine(transformers);
+        assertEquals(Arrays.<Class>asList(Early.class, Registered.class), fake.redefined);
+        assertEquals(Arrays.<Class>asList(Late.class), fake.transformedOnLoading);
+    }
+
+    @Test
+    public void testFailedTransformationDoesNotAbortSweep() throws Exception {
+        fake.loaded.addAll(Arrays.<Class>asList(Early.class, Registered.class, Late.class));
+        List<ClassFileTransformer> failing = Collections.<ClassFileTransformer>singletonList(new ChangingTransformer() {
+            @Override
+            public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                                    ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException
+            {
+                if (classBeingRedefined == Registered.class)
+                    throw new IllegalClassFormatException("bad class");
+                if (classBeingRedefined == Late.class)
+                    throw new IllegalStateException("bad transformer");
+                return super.transform(loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
+            }
+        });
+        redefiner.redefine(failing);
+        assertEquals(Arrays.<Class>asList(Early.class), fake.redefined);
+        String log = new String(Files.readAllBytes(logFile.toPath()), StandardCharsets.UTF_8);
+        assertTrue(log, log.contains("Failed to transform class " + Registered.class.getName()));
+        assertTrue(log, log.contains("Failed to transform class " + Late.class.getName()));
+        // failed classes are quarantined
+        redefiner.redefine(new Class[] {Registered.class, Late.class}, transformers);
+        assertEquals(Arrays.<Class>asList(Early.class), fake.redefined);
+    }
+
+    @Test
+    public void testUnchangedClassesAreCountedPerSweep() throws Exception {
+        fake.loaded.addAll(Arrays.<Class>asList(Early.class, Registered.class));
+        List<ClassFileTransformer> same = Collections.<ClassFileTransformer>singletonList(new ClassFileTransformer() {
+            @Override
+            public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                                    ProtectionDomain protectionDomain, byte[] classfileBuffer)
+            {
+                return classfileBuffer.clone();
+            }
+        });
+        assertEquals(2, redefiner.redefine(same));
+        // targeted requests are not a part of the sweep report
+        redefiner.redefine(new Class[] {Early.class, Registered.class}, same);
+        assertEquals(2, redefiner.redefine(same));
+        assertTrue(fake.redefined.isEmpty());
+    }
+
+    @Test
+    public void testClassesWithoutClassFilesAreSkipped() throws Exception {
+        fake.loaded.addAll(Arrays.<Class>asList(Early.class, inst.getClass()));
+        redefiner.redefine(transformers);
+        assertEquals(Arrays.<Class>asList(Early.class), fake.redefined);
+        String log = new String(Files.readAllBytes(logFile.toPath()), StandardCharsets.UTF_8);
+        assertFalse(log, log.contains("Cannot read class resource"));
+    }
+
+    static class Early {}
+
+    static class Registered {}
+
+    static class Late {}
+
+    // Changes every class it is given
+    private static class ChangingTransformer implements ClassFileTransformer {
+        @Override
+        public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                                ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException
+        {
+            return Arrays.copyOf(classfileBuffer, classfileBuffer.length + 1);
+        }
+    }
+
+    private static class FakeInstrumentation implements InvocationHandler {
+        final List<Class> loaded = new ArrayList<>();
+        final List<ClassFileTransformer> registered = new ArrayList<>();
+        final List<Class> redefined = new ArrayList<>();
+        final List<Class> transformedOnLoading = new ArrayList<>();
+        // class which is loaded during the first redefinition
+        Class loadedOnRedefinition;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+            case "addTransformer":
+                registered.add((ClassFileTransformer) args[0]);
+                return null;
+            case "removeTransformer":
+                return registered.remove((ClassFileTransformer) args[0]);
+            case "getAllLoadedClasses":
+                return loaded.toArray(new Class[loaded.size()]);
+            case "getInitiatedClasses":
+                List<Class> initiated = new ArrayList<>();
+                for (Class clazz : loaded) {
+                    if (clazz.getClassLoader() == args[0])
+                        initiated.add(clazz);
+                }
+                return initiated.toArray(new Class[initiated.size()]);
+            case "redefineClasses":
+                for (ClassDefinition cd : (ClassDefinition[]) args[0])
+                    redefined.add(cd.getDefinitionClass());
+                if (loadedOnRedefinition != null) {
+                    load(loadedOnRedefinition);
+                    loadedOnRedefinition = null;
+                }
+                return null;
+            case "isModifiableClass":
+            case "isRedefineClassesSupported":
+                return true;
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            default:
+                throw new UnsupportedOperationException(method.getName());
+            }
+        }
+
+        // Passes the class through registered transformers like the JVM does on class loading
+        void load(Class clazz) throws IOException, IllegalClassFormatException {
+            String name = clazz.getName().replace('.', '/');
+            byte[] bytes;
+            try (InputStream in = clazz.getResourceAsStream("/" + name + ".class")) {
+                bytes = new byte[in.available()];
+                assertEquals(bytes.length, in.read(bytes));
+            }
+            loaded.add(clazz);
+            for (ClassFileTransformer transformer : new ArrayList<>(registered)) {
+                byte[] result = transformer.transform(clazz.getClassLoader(), name, null, clazz.getProtectionDomain(),
+                    bytes);
+                if (result != null && !(transformer instanceof LoadedClassRegistry))
+                    transformedOnLoading.add(clazz);
+            }
+        }
+    }
+}
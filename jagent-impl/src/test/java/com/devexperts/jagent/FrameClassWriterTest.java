@@ -0,0 +1,244 @@
+package com.devexperts.jagent;
+
+/*
+ * #%L
+ * JAgent Impl
+ * %%
+ * Copyright (C) 2015 - 2016 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import org.junit.Test;
+import org.objectweb.asm.*;
+import org.objectweb.asm.tree.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that {@link FrameClassWriter} created from {@link ClassReader} produces classes
+ * which are equivalent to classes produced with full frames computation.
+ */
+public class FrameClassWriterTest {
+    private static final Class<?>[] CLASSES = {
+        ClassInfo.class, ClassInfoCache.class, ClassInfoMap.class, MemberIndex.class, FastFmtUtil.class, Log.class
+    };
+
+    private final ClassLoader loader = getClass().getClassLoader();
+    private final ClassInfoCache ciCache = new ReflectiveClassInfoCache();
+
+    @Test
+    public void testUntouchedClassIsCopied() throws Exception {
+        for (Class<?> c : CLASSES) {
+            ClassReader cr = readClass(c);
+            ClassWriter cw = new FrameClassWriter(cr, loader, ciCache, readVersion(cr));
+            cr.accept(cw, 0);
+            // no frames are computed, class is written back byte to byte
+            assertArrayEquals(c.getName(), cr.b, cw.toByteArray());
+        }
+    }
+
+    @Test
+    public void testTransformedMethodsAreEquivalent() throws Exception {
+        for (Class<?> c : CLASSES) {
+            ClassReader cr = readClass(c);
+            int version = readVersion(cr);
+            ClassWriter full = new FrameClassWriter(loader, ciCache, version);
+            cr.accept(new NopInserter(full), 0);
+            ClassWriter fast = new FrameClassWriter(cr, loader, ciCache, version);
+            cr.accept(new NopInserter(fast), 0);
+
+            ClassNode original = toNode(cr.b);
+            ClassNode fullNode = toNode(full.toByteArray());
+            ClassNode fastNode = toNode(fast.toByteArray());
+            assertEquals(fullNode.methods.size(), fastNode.methods.size());
+            for (int i = 0; i < fastNode.methods.size(); i++) {
+                MethodNode fastMethod = method(fastNode, i);
+                if (NopInserter.isTransformed(fastMethod.name)) {
+                    // transformed methods: same code as with full computation
+                    assertEquals(dump(method(fullNode, i), false), dump(fastMethod, false));
+                    assertEquals(method(fullNode, i).maxStack, fastMethod.maxStack);
+                    assertEquals(method(fullNode, i).maxLocals, fastMethod.maxLocals);
+                } else {
+                    // untouched methods: copied as is, including frames
+                    assertEquals(dump(method(original, i), true), dump(fastMethod, true));
+                }
+            }
+            // both variants pass verification
+            new VerifyingClassLoader(loader).define(c.getName(), full.toByteArray());
+            new VerifyingClassLoader(loader).define(c.getName(), fast.toByteArray());
+        }
+    }
+
+    private static ClassReader readClass(Class<?> c) throws IOException {
+        try (InputStream in = c.getResourceAsStream("/" + c.getName().replace('.', '/') + ".class")) {
+            return new ClassReader(in);
+        }
+    }
+
+    private static int readVersion(ClassReader cr) {
+        ClassInfoVisitor visitor = new ClassInfoVisitor();
+        cr.accept(visitor, ClassReader.SKIP_CODE);
+        return visitor.buildClassInfo().getVersion();
+    }
+
+    private static ClassNode toNode(byte[] bytes) {
+        ClassNode node = new ClassNode();
+        new ClassReader(bytes).accept(node, 0);
+        return node;
+    }
+
+    // Textual representation of method code which does not depend on constant pool layout
+    private static String dump(MethodNode method, boolean withFrames) {
+        StringBuilder sb = new StringBuilder(method.name).append(method.desc).append('\n');
+        Map<LabelNode, Integer> labels = new HashMap<>();
+        for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            if (insn instanceof LabelNode)
+                labels.put((LabelNode) insn, labels.size());
+        }
+        for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            if (insn instanceof LineNumberNode)
+                continue;
+            if (insn instanceof FrameNode) {
+                if (withFrames) {
+                    FrameNode frame = (FrameNode) insn;
+                    sb.append("FRAME ").append(frame.type).append(' ').append(frame.local).append(' ').append(frame.stack);
+                }
+            } else if (insn instanceof LabelNode) {
+                sb.append('L').append(labels.get(insn));
+            } else {
+                sb.append(insn.getOpcode());
+                if (insn instanceof VarInsnNode)
+                    sb.append(' ').append(((VarInsnNode) insn).var);
+                else if (insn instanceof IntInsnNode)
+                    sb.append(' ').append(((IntInsnNode) insn).operand);
+                else if (insn instanceof IincInsnNode)
+                    sb.append(' ').append(((IincInsnNode) insn).var).append(' ').append(((IincInsnNode) insn).incr);
+                else if (insn instanceof LdcInsnNode)
+                    sb.append(' ').append(((LdcInsnNode) insn).cst);
+                else if (insn instanceof TypeInsnNode)
+                    sb.append(' ').append(((TypeInsnNode) insn).desc);
+                else if (insn instanceof FieldInsnNode)
+                    sb.append(' ').append(((FieldInsnNode) insn).owner).append('.').append(((FieldInsnNode) insn).name);
+                else if (insn instanceof MethodInsnNode)
+                    sb.append(' ').append(((MethodInsnNode) insn).owner).append('.').append(((MethodInsnNode) insn).name)
+                        .append(((MethodInsnNode) insn).desc);
+                else if (insn instanceof JumpInsnNode)
+                    sb.append(" L").append(labels.get(((JumpInsnNode) insn).label));
+                else if (insn instanceof TableSwitchInsnNode)
+                    appendLabels(sb, labels, ((TableSwitchInsnNode) insn).dflt, ((TableSwitchInsnNode) insn).labels);
+                else if (insn instanceof LookupSwitchInsnNode)
+                    appendLabels(sb, labels, ((LookupSwitchInsnNode) insn).dflt, ((LookupSwitchInsnNode) insn).labels);
+            }
+            sb.append('\n');
+        }
+        for (Object o : method.tryCatchBlocks) {
+            TryCatchBlockNode tcb = (TryCatchBlockNode) o;
+            sb.append("TRY L").append(labels.get(tcb.start)).append(" L").append(labels.get(tcb.end))
+                .append(" L").append(labels.get(tcb.handler)).append(' ').append(tcb.type).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static void appendLabels(StringBuilder sb, Map<LabelNode, Integer> labels, LabelNode dflt, List<?> list) {
+        sb.append(" L").append(labels.get(dflt));
+        for (Object label : list)
+            sb.append(" L").append(labels.get(label));
+    }
+
+    private static MethodNode method(ClassNode node, int i) {
+        return (MethodNode) node.methods.get(i);
+    }
+
+    // Inserts NOP at the beginning of every other method, it does not affect control flow
+    private static class NopInserter extends ClassVisitor {
+        NopInserter(ClassVisitor cv) {
+            super(Opcodes.ASM5, cv);
+        }
+
+        static boolean isTransformed(String name) {
+            return (name.hashCode() & 1) == 0;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+            MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+            if (mv == null || !isTransformed(name))
+                return mv;
+            return new MethodVisitor(Opcodes.ASM5, mv) {
+                @Override
+                public void visitCode() {
+                    super.visitCode();
+                    super.visitInsn(Opcodes.NOP);
+                }
+            };
+        }
+    }
+
+    // Describes JDK classes via reflection, ASM 5 cannot read class files of newer JDKs
+    private static class ReflectiveClassInfoCache extends ClassInfoCache {
+        ReflectiveClassInfoCache() {
+            super(new Log("test", Log.Level.WARN, null));
+        }
+
+        @Override
+        public synchronized ClassInfo getOrBuildClassInfo(String internalClassName, ClassLoader loader) {
+            if (!internalClassName.startsWith("java/"))
+                return super.getOrBuildClassInfo(internalClassName, loader);
+            ClassInfoMap map = getOrInitClassInfoMap(null);
+            ClassInfo classInfo = map.get(internalClassName);
+            if (classInfo != null)
+                return classInfo;
+            Class<?> c;
+            try {
+                c = Class.forName(internalClassName.replace('/', '.'), false, null);
+            } catch (ClassNotFoundException e) {
+                return null;
+            }
+            Class<?>[] interfaces = c.getInterfaces();
+            String[] interfaceNames = new String[interfaces.length];
+            for (int i = 0; i < interfaces.length; i++)
+                interfaceNames[i] = Type.getInternalName(interfaces[i]);
+            classInfo = new ClassInfo.Builder()
+                .access(c.isInterface() ? Opcodes.ACC_INTERFACE : 0)
+                .internalName(internalClassName)
+                .internalSuperName(c.getSuperclass() == null ? null : Type.getInternalName(c.getSuperclass()))
+                .internalInterfaceNames(interfaceNames)
+                .build();
+            map.put(internalClassName, classInfo);
+            return classInfo;
+        }
+    }
+
+    private static class VerifyingClassLoader extends ClassLoader {
+        VerifyingClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        void define(String name, byte[] bytes) {
+            Class<?> c = defineClass(name, bytes, 0, bytes.length);
+            // forces linking and verification of all methods
+            c.getDeclaredMethods();
+            resolveClass(c);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.devexperts.jagent;
+
+/*
+ * #%L
+ * JAgent Impl
+ * %%
+ * Copyright (C) 2015 - 2016 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Verifies that messages are assembled as with string concatenation, that enabled logging does not allocate memory
+ * and that asynchronous logger handles overflow of its buffer according to the policy.
+ */
+public class LogTest {
+    private static final int WARM_UP_COUNT = 20000;
+    private static final int COUNT = 10000;
+
+    // boxed in advance, boxing on call site is not a part of logging
+    private static final Object NUMBER = 123456789L;
+    private static final Object NEGATIVE = -42;
+
+    @Test
+    public void testMessageFormat() throws IOException {
+        File file = createLogFile();
+        Log log = new Log("test", Log.Level.INFO, file.getPath());
+        log.debug("skipped");
+        log.info("a", NUMBER, ' ', NEGATIVE, String.class, Runnable.class, null, true, new StringBuilder("sb"), "é");
+        log.warn("failed ", 1, new Exception("boom"));
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals("test: a123456789 -42class java.lang.Stringinterface java.lang.Runnablenulltruesb\\u00e9",
+            lines.get(0).substring(lines.get(0).indexOf(' ') + 1));
+        assertTrue(lines.get(1), lines.get(1).endsWith(" test: failed 1"));
+        assertTrue(lines.get(2), lines.get(2).endsWith(" test: java.lang.Exception: boom"));
+    }
+
+    @Test
+    public void testSynchronousLoggingDoesNotAllocate() throws IOException {
+        checkNoAllocation(new Log("test", Log.Level.DEBUG, createLogFile().getPath()));
+    }
+
+    @Test
+    public void testAsynchronousLoggingDoesNotAllocate() throws IOException {
+        checkNoAllocation(new Log("test", Log.Level.DEBUG, createLogFile().getPath(), 1024, Log.OverflowPolicy.BLOCK));
+    }
+
+    @Test
+    public void testDropPolicy() throws Exception {
+        File file = createLogFile();
+        Log log = new Log("test", Log.Level.DEBUG, file.getPath(), 4, Log.OverflowPolicy.DROP);
+        StallingException stall = stallWriter(log);
+        for (int i = 1; i < 4; i++)
+            log.info("kept ", i);
+        for (int i = 0; i < 5; i++)
+            log.warn("dropped ", i);
+        assertEquals(5, log.getDroppedMessageCount());
+        assertEquals(0, log.getBlockedMessageCount());
+        stall.release.countDown();
+        log.close();
+        String text = readLog(file);
+        for (int i = 1; i < 4; i++)
+            assertTrue(text, text.contains("test: kept " + i));
+        assertFalse(text, text.contains("test: dropped"));
+        assertTrue(text, text.contains("5 log messages are dropped since the log buffer is full"));
+    }
+
+    @Test
+    public void testSamplePolicy() throws Exception {
+        File file = createLogFile();
+        Log log = new Log("test", Log.Level.DEBUG, file.getPath(), 8, Log.OverflowPolicy.SAMPLE);
+        StallingException stall = stallWriter(log);
+        // buffer is not half full yet
+        for (int i = 1; i < 4; i++)
+            log.debug("kept ", i);
+        // every 10th message is kept from now on, the first one included
+        for (int i = 0; i < 10; i++)
+            log.debug("sampled ", i);
+        log.warn("warning");
+        assertEquals(9, log.getDroppedMessageCount());
+        stall.release.countDown();
+        log.close();
+        String text = readLog(file);
+        for (int i = 1; i < 4; i++)
+            assertTrue(text, text.contains("test: kept " + i));
+        assertTrue(text, text.contains("test: sampled 0"));
+        assertFalse(text, text.contains("test: sampled 1"));
+        assertTrue(text, text.contains("test: warning"));
+        assertTrue(text, text.contains("9 log messages are dropped since the log buffer is full"));
+    }
+
+    @Test
+    public void testBlockPolicy() throws Exception {
+        File file = createLogFile();
+        final Log log = new Log("test", Log.Level.DEBUG, file.getPath(), 4, Log.OverflowPolicy.BLOCK);
+        StallingException stall = stallWriter(log);
+        for (int i = 1; i < 4; i++)
+            log.info("kept ", i);
+        Thread blocked = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                log.info("waited");
+            }
+        });
+        blocked.start();
+        while (log.getBlockedMessageCount() == 0)
+            Thread.sleep(1);
+        assertTrue(blocked.isAlive());
+        stall.release.countDown();
+        blocked.join();
+        log.close();
+        assertEquals(0, log.getDroppedMessageCount());
+        assertEquals(1, log.getBlockedMessageCount());
+        String text = readLog(file);
+        assertTrue(text, text.contains("test: waited"));
+        assertFalse(text, text.contains("log messages are dropped"));
+    }
+
+    @Test
+    public void testCloseWritesRemainingMessages() throws Exception {
+        File file = createLogFile();
+        Log log = new Log("test", Log.Level.DEBUG, file.getPath(), 16, Log.OverflowPolicy.DROP);
+        StallingException stall = stallWriter(log);
+        for (int i = 1; i < 10; i++)
+            log.info("pending ", i);
+        stall.release.countDown();
+        log.close();
+        log.info("after close");
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertTrue(lines.get(0), lines.get(0).endsWith(" test: stall"));
+        assertTrue(lines.get(1), lines.get(1).endsWith(" test: " + StallingException.class.getName()));
+        for (int i = 1; i < 10; i++)
+            assertTrue(lines.get(i + 1), lines.get(i + 1).endsWith(" test: pending " + i));
+        assertTrue(lines.get(11), lines.get(11).endsWith(" test: after close"));
+        assertEquals(12, lines.size());
+    }
+
+    // Logs a message which keeps the background thread busy until the returned exception is released
+    private static StallingException stallWriter(Log log) throws InterruptedException {
+        StallingException stall = new StallingException();
+        log.log(Log.Level.INFO, "stall", stall);
+        stall.started.await();
+        return stall;
+    }
+
+    private static String readLog(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    private static class StallingException extends Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        StallingException() {
+            super(null, null, false, false);
+        }
+
+        @Override
+        public void printStackTrace(PrintWriter s) {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.printStackTrace(s);
+        }
+    }
+
+    private static void checkNoAllocation(Log log) {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean &&
+            ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported());
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        long threadId = Thread.currentThread().getId();
+        logMessages(log, WARM_UP_COUNT);
+        long allocated = threadBean.getThreadAllocatedBytes(threadId);
+        logMessages(log, COUNT);
+        allocated = threadBean.getThreadAllocatedBytes(threadId) - allocated;
+        // allow a few allocations of the measurement itself
+        assertTrue("allocated " + allocated + " bytes for " + COUNT + " messages", allocated < COUNT);
+    }
+
+    private static void logMessages(Log log, int count) {
+        for (int i = 0; i < count; i++) {
+            log.debug("Transforming ", "com/example/SomeClass", " loaded by ", NUMBER);
+            log.info("Transformed ", String.class, " in ", NEGATIVE, " ms");
+        }
+    }
+
+    private static File createLogFile() throws IOException {
+        File file = File.createTempFile("LogTest", ".log");
+        file.deleteOnExit();
+        return file;
+    }
+}
@@ -0,0 +1,120 @@
+package com.devexperts.jagent;
+
+/*
+ * #%L
+ * JAgent Impl
+ * %%
+ * Copyright (C) 2015 - 2016 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies lookups in {@link MemberIndex} and its use by {@link ClassInfo}.
+ */
+public class MemberIndexTest {
+    private static final int MEMBER_COUNT = 1000;
+
+    @Test
+    public void testMembersAreFound() {
+        MemberIndex.Builder builder = new MemberIndex.Builder();
+        for (int i = 0; i < MEMBER_COUNT; i++) {
+            builder.addMethod(Opcodes.ACC_PUBLIC, "m" + i, "()V");
+            builder.addField(Opcodes.ACC_PRIVATE, "f" + i, "I");
+        }
+        MemberIndex mi = builder.build();
+        assertEquals(2 * MEMBER_COUNT, mi.getMemberCount());
+        for (int i = 0; i < MEMBER_COUNT; i++) {
+            assertEquals(Opcodes.ACC_PUBLIC, mi.getMethodAccess("m" + i, "()V"));
+            assertEquals(Opcodes.ACC_PUBLIC, mi.getMethodAccess("m" + i, null));
+            assertEquals(Opcodes.ACC_PRIVATE, mi.getFieldAccess("f" + i, "I"));
+            assertFalse(mi.hasMethod("m" + i, "()I"));
+            // fields and methods are looked up separately
+            assertFalse(mi.hasField("m" + i, null));
+            assertFalse(mi.hasMethod("f" + i, null));
+        }
+        assertFalse(mi.hasMethod("absent", null));
+    }
+
+    @Test
+    public void testEmptyIndex() {
+        MemberIndex mi = new MemberIndex.Builder().build();
+        assertEquals(0, mi.getMemberCount());
+        assertEquals(-1, mi.getMethodAccess("m", null));
+        assertFalse(mi.hasAnnotations());
+    }
+
+    @Test
+    public void testAllOverloadsAreChecked() {
+        MemberIndex mi = new MemberIndex.Builder()
+            .addMethod(Opcodes.ACC_PRIVATE, "run", "()V")
+            .addMethod(Opcodes.ACC_STATIC, "run", "(I)V")
+            .addMethod(Opcodes.ACC_PROTECTED | Opcodes.ACC_ABSTRACT, "run", "(J)V")
+            .addMethod(Opcodes.ACC_PUBLIC, "run", "(Ljava/lang/String;)V")
+            .build();
+        int notVirtual = Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC;
+        assertEquals(Opcodes.ACC_PROTECTED | Opcodes.ACC_ABSTRACT, mi.getMethodAccess("run", null, notVirtual, 0));
+        assertEquals(Opcodes.ACC_PUBLIC, mi.getMethodAccess("run", null, notVirtual | Opcodes.ACC_ABSTRACT, 0));
+        assertEquals(Opcodes.ACC_PUBLIC, mi.getMethodAccess("run", null, 0, Opcodes.ACC_PUBLIC));
+        assertEquals(-1, mi.getMethodAccess("run", "()V", notVirtual, 0));
+    }
+
+    @Test
+    public void testMemberAnnotations() {
+        MemberIndex mi = new MemberIndex.Builder(true)
+            .addMethod(Opcodes.ACC_PUBLIC, "init", "()V")
+            .addMethod(Opcodes.ACC_PUBLIC, "init", "(I)V").addAnnotation("LA;").addAnnotation("LB;")
+            .addField(Opcodes.ACC_PRIVATE, "x", "I").addAnnotation("LC;")
+            .build();
+        assertTrue(mi.hasAnnotations());
+        assertFalse(mi.hasMethodAnnotation("init", "()V", "LA;"));
+        assertTrue(mi.hasMethodAnnotation("init", "(I)V", "LB;"));
+        assertTrue(mi.hasFieldAnnotation("x", "I", "LC;"));
+        assertFalse(mi.hasFieldAnnotation("x", "I", "LA;"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAnnotationsAreNotIndexed() {
+        new MemberIndex.Builder().addMethod(Opcodes.ACC_PUBLIC, "m", "()V").build().hasMethodAnnotation("m", null, "LA;");
+    }
+
+    @Test
+    public void testFailedIndexIsNotRebuilt() throws IOException {
+        ClassInfoVisitor visitor = new ClassInfoVisitor();
+        new ClassReader(MemberIndexTest.class.getName()).accept(visitor, ClassReader.SKIP_CODE);
+        ClassInfo classInfo = visitor.buildClassInfo();
+        final int[] builds = new int[1];
+        ClassInfoCache ciCache = new ClassInfoCache(new Log("test", Log.Level.ERROR, null)) {
+            @Override
+            MemberIndex buildMemberIndex(String internalClassName, ClassLoader loader) {
+                builds[0]++;
+                return null;
+            }
+        };
+        for (int i = 0; i < 3; i++) {
+            assertNull(classInfo.getMemberIndex(ciCache, null));
+        }
+        assertEquals(1, builds[0]);
+    }
+}
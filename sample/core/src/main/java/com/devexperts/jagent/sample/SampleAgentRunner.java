@@ -25,13 +25,57 @@ package com.devexperts.jagent.sample;
 import com.devexperts.jagent.InnerJarClassLoader;
 import com.devexperts.jagent.JAgentRunner;
 
+import java.io.IOException;
 import java.lang.instrument.Instrumentation;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 public class SampleAgentRunner {
+    private static final String AGENT_CLASS = "com.devexperts.jagent.sample.SampleAgent";
+    private static final String DETACH_ARGS = "detach";
+    // File with classes to be defined in advance, it is written on shutdown
+    private static final String WARM_UP_CLASS_LIST_PROPERTY = "sample.warmup.classlist";
+
+    // Directory to extract inner JARs to, so their classes can be stored in CDS archive
+    private static final String JARS_DIRECTORY_PROPERTY = "sample.jars.dir";
+    // File to write list of classes for static CDS archive to, see README
+    private static final String SHARED_CLASS_LIST_PROPERTY = "sample.cds.classlist";
+    private static final String[] JARS = {"asm-all.jar", "jagent-impl.jar", "transformer.jar", "owner.jar", "owner-java8.jar"};
 
     public static void premain(String agentArgs, Instrumentation inst) throws Exception {
+        String jarsDirectory = System.getProperty(JARS_DIRECTORY_PROPERTY);
+        InnerJarClassLoader loader = jarsDirectory != null ?
+                InnerJarClassLoader.createForJars(Paths.get(jarsDirectory), JARS) :
+                InnerJarClassLoader.createForJars(JARS);
+        String sharedClassList = System.getProperty(SHARED_CLASS_LIST_PROPERTY);
+        if (jarsDirectory != null && sharedClassList != null)
+            writeSharedClassListOnExit(loader, Paths.get(sharedClassList));
+        String classList = System.getProperty(WARM_UP_CLASS_LIST_PROPERTY);
+        if (classList != null)
+            loader.warmUp(classList, Runtime.getRuntime().availableProcessors());
         // Run "SampleAgent" using "JAgentRunner". "SampleAgent" is loaded via created "InnerJarClassLoader".
-        JAgentRunner.runAgent("com.devexperts.jagent.sample.SampleAgent", inst, agentArgs,
-                InnerJarClassLoader.createForJars("asm-all.jar", "jagent-impl.jar", "transformer.jar"));
+        JAgentRunner.runAgent(AGENT_CLASS, inst, agentArgs, loader);
+    }
+
+    private static void writeSharedClassListOnExit(final InnerJarClassLoader loader, final Path file) {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loader.writeSharedClassList(file);
+                } catch (IOException e) {
+                    System.err.println("Cannot write shared class list to " + file + ": " + e);
+                }
+            }
+        }, "SharedClassListWriter"));
+    }
+
+    public static void agentmain(String agentArgs, Instrumentation inst) throws Exception {
+        // Attaching with "detach" arguments stops previously attached agent and restores original classes,
+        // the agent should be attached with "detachable" arguments for that.
+        if (DETACH_ARGS.equals(agentArgs))
+            JAgentRunner.stopAgent(AGENT_CLASS);
+        else
+            premain(agentArgs, inst);
     }
 }
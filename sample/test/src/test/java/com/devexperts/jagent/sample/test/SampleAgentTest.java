@@ -22,6 +22,14 @@ package com.devexperts.jagent.sample.test;/*
 
 import org.junit.Test;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 // Tests that SampleAgent works alright,
 public class SampleAgentTest {
 
@@ -35,6 +43,16 @@ public class SampleAgentTest {
         doNotDeleteMe();
     }
 
+    @Test
+    public void testRedefinition() throws IOException {
+        // classes which were loaded before the agent are redefined on start
+        String log = new String(Files.readAllBytes(Paths.get(System.getProperty("sample.log.file"))),
+            StandardCharsets.UTF_8);
+        assertTrue(log, log.contains("Done redefining with "));
+        // generated classes, e.g. lambdas and proxies, are skipped
+        assertFalse(log, log.contains("Cannot read class resource"));
+    }
+
     private void deleteMe() {
     }
 
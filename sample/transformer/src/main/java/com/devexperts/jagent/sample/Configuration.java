@@ -26,8 +26,8 @@ import org.aeonbits.owner.Config;
 
 /**
  * Configuration via {@code OWNER} framework.
+ * System properties override properties of {@code sample.properties} resource, see {@code SampleAgent}.
  */
-@Config.Sources("classpath:sample.properties")
 public interface Configuration extends Config {
 
     @Key("sample.delete.method")
@@ -43,6 +43,14 @@ public interface Configuration extends Config {
     @Key("sample.log.file")
     String logFile();
 
+    @Key("sample.log.buffer.size")
+    @DefaultValue("0")
+    int logBufferSize();
+
+    @Key("sample.log.overflow.policy")
+    @DefaultValue("DROP")
+    String logOverflowPolicy();
+
     @Key("sample.redifinition.verbose")
     @DefaultValue("false")
     boolean verboseRedifinition();
@@ -51,6 +59,26 @@ public interface Configuration extends Config {
     @DefaultValue("false")
     boolean redefine();
 
+    @Key("sample.retransformation.enabled")
+    @DefaultValue("false")
+    boolean retransform();
+
+    @Key("sample.redefinition.threads")
+    Integer redefinitionThreads();
+
+    @Key("sample.redefinition.batch.size")
+    Integer redefinitionBatchSize();
+
+    @Key("sample.redefinition.async")
+    @DefaultValue("false")
+    boolean asyncRedefinition();
+
+    @Key("sample.redefinition.rate")
+    Integer redefinitionRate();
+
+    @Key("sample.redefinition.priority.packages")
+    String[] redefinitionPriorityPackages();
+
     @Key("sample.cache.dir")
     String cacheDir();
 
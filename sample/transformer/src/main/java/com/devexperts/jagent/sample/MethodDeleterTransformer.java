@@ -49,11 +49,15 @@ class MethodDeleterTransformer implements ClassFileTransformer {
         if (!classNameToProcess.equals(className))
             return null;
         ClassReader cr = new ClassReader(classfileBuffer);
-        ClassInfoVisitor ciVisitor = new ClassInfoVisitor();
-        cr.accept(ciVisitor, 0);
+        ClassInfoVisitor ciVisitor = new ClassInfoVisitor(ClassInfoVisitor.INDEX_MEMBERS);
+        cr.accept(ciVisitor, ClassReader.SKIP_CODE + ClassReader.SKIP_FRAMES);
         ClassInfo cInfo = ciVisitor.buildClassInfo();
+        // if evicted, it is rebuilt from the class file
         ciCache.getOrInitClassInfoMap(loader).put(className, cInfo);
-        ClassWriter cw = new FrameClassWriter(loader, ciCache, cInfo.getVersion());
+        // nothing to delete
+        if (!cInfo.getMemberIndex(ciCache, loader).hasMethod(methodToDelete, null))
+            return null;
+        ClassWriter cw = new FrameClassWriter(cr, loader, ciCache, cInfo.getVersion());
         ClassVisitor transformer = new ClassVisitor(ASM_API, cw) {
             @Override
             public MethodVisitor visitMethod(int access, final String mname, final String desc, String signature, String[] exceptions) {
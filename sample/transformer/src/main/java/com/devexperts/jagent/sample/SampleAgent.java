@@ -27,10 +27,16 @@ import com.devexperts.jagent.JAgentUtil;
 import com.devexperts.jagent.Log;
 import org.aeonbits.owner.ConfigFactory;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.instrument.Instrumentation;
+import java.util.Properties;
 
 @SuppressWarnings("unused")
 public class SampleAgent extends JAgent {
+    // Agent arguments to keep original classes, so the agent can be detached later
+    private static final String DETACHABLE_ARGS = "detachable";
+    private static final String PROPERTIES_RESOURCE = "/sample.properties";
 
     private SampleAgent(Instrumentation inst, String agentArgs, String agentName, String agentVersion, Log log) {
         super(inst, agentName, agentVersion, log);
@@ -39,7 +45,8 @@ public class SampleAgent extends JAgent {
     public static SampleAgent create(Instrumentation inst, String agentArgs) {
         String agentName = JAgentUtil.getImplTitle(SampleAgent.class);
         String agentVersion = JAgentUtil.getImplVersion(SampleAgent.class);
-        Configuration cfg = ConfigFactory.create(Configuration.class, System.getProperties());
+        Configuration cfg = ConfigFactory.create(Configuration.class, System.getProperties(),
+            loadProperties(PROPERTIES_RESOURCE));
         Log.Level logLevel;
         try {
             logLevel = Log.Level.valueOf(cfg.logLevel());
@@ -47,11 +54,41 @@ public class SampleAgent extends JAgent {
             System.err.println("Invalid log level: " + cfg.logLevel() + ", INFO used by default");
             logLevel = Log.Level.INFO;
         }
-        Log log = new Log(agentName, logLevel, cfg.logFile());
+        Log.OverflowPolicy overflowPolicy;
+        try {
+            overflowPolicy = Log.OverflowPolicy.valueOf(cfg.logOverflowPolicy());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid log overflow policy: " + cfg.logOverflowPolicy() + ", DROP used by default");
+            overflowPolicy = Log.OverflowPolicy.DROP;
+        }
+        Log log = new Log(agentName, logLevel, cfg.logFile(), cfg.logBufferSize(), overflowPolicy);
         SampleAgent agent = new SampleAgent(inst, agentArgs, agentName, agentVersion, log);
         agent.setRedefineClasses(cfg.redefine());
+        agent.setRetransformClasses(cfg.retransform());
+        agent.setDetachable(DETACHABLE_ARGS.equals(agentArgs));
         agent.setIsVerboseRedefinition(cfg.verboseRedifinition());
+        if (cfg.redefinitionThreads() != null)
+            agent.setRedefinitionThreads(cfg.redefinitionThreads());
+        if (cfg.redefinitionBatchSize() != null)
+            agent.setRedefinitionBatchSize(cfg.redefinitionBatchSize());
+        agent.setAsyncRedefinition(cfg.asyncRedefinition());
+        if (cfg.redefinitionRate() != null)
+            agent.setRedefinitionRate(cfg.redefinitionRate());
+        if (cfg.redefinitionPriorityPackages() != null)
+            agent.setRedefinitionPriorityPackages(cfg.redefinitionPriorityPackages());
         agent.addTransformer(new MethodDeleterTransformer(cfg.clazz(), cfg.method(), log));
         return agent;
     }
+
+    // The resource is read as a stream, because URLs of InnerJarClassLoader resources cannot be created from strings
+    private static Properties loadProperties(String resource) {
+        Properties props = new Properties();
+        try (InputStream in = SampleAgent.class.getResourceAsStream(resource)) {
+            if (in != null)
+                props.load(in);
+        } catch (IOException e) {
+            System.err.println("Cannot read " + resource + ": " + e);
+        }
+        return props;
+    }
 }